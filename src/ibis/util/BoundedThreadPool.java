@@ -0,0 +1,593 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Threadpool with a core and a maximum number of threads, and a bounded
+ * queue of tasks in front of the threads.
+ *
+ * A task handed to {@link #execute(Runnable, String)} is given to an idle
+ * thread if there is one. Otherwise, a new thread is created, as long as
+ * the number of threads is below the maximum. If the maximum is reached,
+ * the task is queued. Threads above the core number of threads exit when
+ * they have been idle for a while.
+ *
+ * When both the threads and the queue are exhausted, the overflow policy
+ * decides what happens:
+ * <ul>
+ * <li>{@link #OVERFLOW_SPAWN}: a new thread is created anyway. Just like
+ *     {@link ThreadPool}, this guarantees that tasks that wait for each other
+ *     cannot deadlock, at the expense of exceeding the maximum.
+ * <li>{@link #OVERFLOW_CALLER_RUNS}: the task is run by the thread that
+ *     submitted it.
+ * <li>{@link #OVERFLOW_REJECT}: a {@link RejectedExecutionException} is
+ *     thrown.
+ * </ul>
+ * Only {@link #OVERFLOW_SPAWN} keeps the no-deadlock guarantee of
+ * {@link ThreadPool}; the other policies should only be used for tasks that
+ * never wait for other tasks in the same pool.
+ *
+ * Tasks submitted with <code>priority = true</code> are queued in a separate
+ * lane, which threads serve before the lane of normal tasks. In addition, a
+ * number of threads can be reserved for priority tasks with
+ * {@link #setReserved(int)}: normal tasks never occupy more than the
+ * remaining threads, so that a flood of bulk work cannot starve
+ * latency-critical tasks.
+ */
+public final class BoundedThreadPool {
+
+    /** Overflow policy: create a new thread beyond the maximum. */
+    public static final int OVERFLOW_SPAWN = 0;
+
+    /** Overflow policy: run the task in the submitting thread. */
+    public static final int OVERFLOW_CALLER_RUNS = 1;
+
+    /** Overflow policy: reject the task. */
+    public static final int OVERFLOW_REJECT = 2;
+
+    static final Logger logger = Logger.getLogger(BoundedThreadPool.class);
+
+    private static final int TIMEOUT = 30 * 1000; //30 seconds
+
+    // Results of dispatch().
+    private static final int DISPATCHED = 0;
+
+    private static final int CALLER_RUNS = 1;
+
+    private static final int REJECTED = 2;
+
+    /**
+     * A growable ring buffer of queued tasks. The parts of a task are kept
+     * in parallel arrays, so that a task needs no holder object. Only used
+     * with the lock of the pool held.
+     */
+    private static final class Lane {
+        private Runnable[] tasks;
+
+        private String[] names;
+
+        private long[] times;
+
+        private int head = 0;
+
+        int count = 0;
+
+        Lane(int initial) {
+            tasks = new Runnable[initial];
+            names = new String[initial];
+            times = new long[initial];
+        }
+
+        void add(Runnable runnable, String name, long time) {
+            if (count == tasks.length) {
+                // Grow the ring buffer, unrolling it in the process.
+                Runnable[] newTasks = new Runnable[tasks.length * 2];
+                String[] newNames = new String[tasks.length * 2];
+                long[] newTimes = new long[tasks.length * 2];
+                for (int i = 0; i < count; i++) {
+                    int index = (head + i) % tasks.length;
+                    newTasks[i] = tasks[index];
+                    newNames[i] = names[index];
+                    newTimes[i] = times[index];
+                }
+                tasks = newTasks;
+                names = newNames;
+                times = newTimes;
+                head = 0;
+            }
+            int tail = (head + count) % tasks.length;
+            tasks[tail] = runnable;
+            names[tail] = name;
+            times[tail] = time;
+            count++;
+        }
+
+        void take(Worker worker) {
+            worker.work = tasks[head];
+            worker.workName = names[head];
+            worker.workTime = times[head];
+            tasks[head] = null;
+            names[head] = null;
+            head = (head + 1) % tasks.length;
+            count--;
+        }
+    }
+
+    private final class Worker extends Thread {
+
+        private Runnable work;
+
+        private String workName;
+
+        private long workTime;
+
+        /** Whether the current task is a normal (not a priority) task. */
+        private boolean runsBulk;
+
+        Worker(Runnable runnable, String name, long time, boolean runsBulk) {
+            super(name);
+            this.work = runnable;
+            this.workName = name;
+            this.workTime = time;
+            this.runsBulk = runsBulk;
+            setDaemon(true);
+        }
+
+        public void run() {
+            if (cpus != null) {
+                CpuAffinity.pin(cpus);
+            }
+            while (true) {
+                if (work == null) {
+                    synchronized (BoundedThreadPool.this) {
+                        if (!fetch(this)) {
+                            return;
+                        }
+                    }
+                }
+                Runnable currentWork = work;
+                String currentName = workName;
+                work = null;
+                workName = null;
+
+                long startTime = metrics.taskStarted(workTime);
+                boolean replace = false;
+                try {
+                    setName(currentName);
+                    currentWork.run();
+                } catch (Throwable t) {
+                    replace = getFailureHandler().taskFailed(currentName, t);
+                }
+                metrics.taskDone(startTime);
+
+                if (replace) {
+                    synchronized (BoundedThreadPool.this) {
+                        replace(this);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private final String name;
+
+    private final int coreThreads;
+
+    private final int maxThreads;
+
+    private final int capacity;
+
+    private final int overflow;
+
+    // Queued tasks. Together, the lanes may temporarily hold more than
+    // capacity tasks: tasks handed to idle threads also pass through them.
+    private final Lane urgent;
+
+    private final Lane bulk;
+
+    private int threads = 0;
+
+    /** Number of threads that are running a normal task. */
+    private int busyBulk = 0;
+
+    /** Number of threads normal tasks are not allowed to occupy. */
+    private int reserved = 0;
+
+    private int idle = 0;
+
+    private boolean shutdown = false;
+
+    private volatile TaskFailureHandler failureHandler = null;
+
+    private volatile String cpus = null;
+
+    private final ThreadPoolMetrics metrics = new ThreadPoolMetrics();
+
+    /**
+     * Creates a bounded threadpool.
+     *
+     * @param name the name of the pool, used in log messages.
+     * @param coreThreads the number of threads that is kept alive when idle.
+     * @param maxThreads the maximum number of threads before tasks get queued.
+     * @param capacity the maximum number of queued tasks.
+     * @param overflow the overflow policy: one of {@link #OVERFLOW_SPAWN},
+     *     {@link #OVERFLOW_CALLER_RUNS}, or {@link #OVERFLOW_REJECT}.
+     */
+    public BoundedThreadPool(String name, int coreThreads, int maxThreads,
+            int capacity, int overflow) {
+        if (coreThreads < 0 || maxThreads < 1 || coreThreads > maxThreads
+                || capacity < 0) {
+            throw new IllegalArgumentException("invalid pool size: core = "
+                    + coreThreads + ", max = " + maxThreads + ", capacity = "
+                    + capacity);
+        }
+        if (overflow < OVERFLOW_SPAWN || overflow > OVERFLOW_REJECT) {
+            throw new IllegalArgumentException("invalid overflow policy: "
+                    + overflow);
+        }
+        this.name = name;
+        this.coreThreads = coreThreads;
+        this.maxThreads = maxThreads;
+        this.capacity = capacity;
+        this.overflow = overflow;
+
+        urgent = new Lane(16);
+        bulk = new Lane(Math.max(16, Math.min(capacity, 1024)));
+    }
+
+    /**
+     * Executes the specified {@link Runnable} on a thread of this pool,
+     * or queues it if all threads are busy.
+     * When the pool is saturated, the overflow policy is applied.
+     *
+     * @param runnable the <code>Runnable</code> to be executed.
+     * @param name set the thread name for the duration of this run
+     * @exception RejectedExecutionException is thrown when the pool is shut
+     *     down, or when it is saturated and the overflow policy is
+     *     {@link #OVERFLOW_REJECT}.
+     */
+    public void execute(Runnable runnable, String name) {
+        execute(runnable, name, false);
+    }
+
+    /**
+     * Executes the specified {@link Runnable} on a thread of this pool, like
+     * {@link #execute(Runnable, String)} does. A priority task is handed to
+     * the first thread that becomes available, ahead of queued normal tasks,
+     * and may run on the threads reserved with {@link #setReserved(int)}.
+     *
+     * @param runnable the <code>Runnable</code> to be executed.
+     * @param name set the thread name for the duration of this run
+     * @param priority when <code>true</code>, the task has priority over
+     *     normal tasks.
+     * @exception RejectedExecutionException is thrown when the pool is shut
+     *     down, or when it is saturated and the overflow policy is
+     *     {@link #OVERFLOW_REJECT}.
+     */
+    public void execute(Runnable runnable, String name, boolean priority) {
+        long time = System.nanoTime();
+        int result;
+
+        metrics.submitted();
+        synchronized (this) {
+            checkShutdown();
+            result = dispatch(runnable, name, time, priority);
+        }
+
+        if (result == REJECTED) {
+            throw new RejectedExecutionException("pool " + this.name
+                    + " is saturated");
+        }
+        if (result == CALLER_RUNS) {
+            runHere(runnable, time);
+        }
+    }
+
+    /**
+     * Executes the specified {@link Runnable}s as normal tasks, like
+     * {@link #execute(Runnable, String)} does, but hands them all to the
+     * pool in a single critical section. When there are fewer threads than
+     * tasks, the remaining tasks are queued and picked up by whichever
+     * threads become available first.
+     *
+     * @param runnables the <code>Runnable</code>s to be executed.
+     * @param name set the thread name for the duration of each run
+     * @exception RejectedExecutionException is thrown when the pool is shut
+     *     down, or when it is saturated and the overflow policy is
+     *     {@link #OVERFLOW_REJECT}. The tasks before the rejected one are
+     *     executed, the ones after it are not.
+     */
+    public void executeAll(Collection<? extends Runnable> runnables,
+            String name) {
+        long time = System.nanoTime();
+        ArrayList<Runnable> callerRuns = null;
+        boolean rejected = false;
+
+        metrics.submitted(runnables.size());
+        synchronized (this) {
+            checkShutdown();
+            for (Runnable runnable : runnables) {
+                int result = dispatch(runnable, name, time, false);
+                if (result == REJECTED) {
+                    rejected = true;
+                    break;
+                }
+                if (result == CALLER_RUNS) {
+                    if (callerRuns == null) {
+                        callerRuns = new ArrayList<Runnable>();
+                    }
+                    callerRuns.add(runnable);
+                }
+            }
+        }
+
+        if (callerRuns != null) {
+            for (Runnable runnable : callerRuns) {
+                runHere(runnable, time);
+            }
+        }
+        if (rejected) {
+            throw new RejectedExecutionException("pool " + this.name
+                    + " is saturated");
+        }
+    }
+
+    /**
+     * Shuts down this pool. Tasks that are already queued are still
+     * executed, but new tasks are rejected. Idle threads exit.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns the current number of threads in this pool.
+     * @return the number of threads.
+     */
+    public synchronized int getPoolSize() {
+        return threads;
+    }
+
+    /**
+     * Returns the number of tasks that are waiting for a thread.
+     * @return the number of queued tasks.
+     */
+    public synchronized int getQueueSize() {
+        return Math.max(0, urgent.count + bulk.count - idle);
+    }
+
+    /**
+     * Reserves the specified number of threads for priority tasks. Normal
+     * tasks never occupy more than the maximum number of threads minus the
+     * reserved threads, unless the overflow policy creates extra threads.
+     * @param threads the number of reserved threads.
+     * @exception IllegalArgumentException is thrown when no threads would
+     *     be left for normal tasks.
+     */
+    public synchronized void setReserved(int threads) {
+        if (threads < 0 || threads >= maxThreads) {
+            throw new IllegalArgumentException("invalid number of reserved "
+                    + "threads: " + threads + ", max = " + maxThreads);
+        }
+        reserved = threads;
+        if (bulk.count > 0 && idle > 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Pins the threads of this pool to the specified CPUs. This only
+     * affects threads that are created after this call. Pinning is only
+     * supported on Linux, and requires the <code>taskset</code> command,
+     * which is run once by every new thread, before its first task; so a
+     * pinned pool should have enough core threads to not create threads
+     * for every burst of work.
+     * @param cpus the CPU list, for instance <code>0-3,8</code>, or
+     *     <code>null</code> to not pin threads.
+     */
+    public void setAffinity(String cpus) {
+        this.cpus = cpus;
+    }
+
+    /**
+     * Sets the handler that decides what happens when a task throws an
+     * exception. By default, the handler of the {@link ThreadPool} is used.
+     * @param handler the new handler.
+     */
+    public void setFailureHandler(TaskFailureHandler handler) {
+        failureHandler = handler;
+    }
+
+    /**
+     * Returns the handler that decides what happens when a task throws an
+     * exception.
+     * @return the handler.
+     */
+    public TaskFailureHandler getFailureHandler() {
+        TaskFailureHandler handler = failureHandler;
+        return handler != null ? handler : ThreadPool.getFailureHandler();
+    }
+
+    /**
+     * Returns the statistics of this pool.
+     * @return the statistics.
+     */
+    public ThreadPoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void checkShutdown() {
+        if (shutdown) {
+            throw new RejectedExecutionException("pool " + this.name
+                    + " is shut down");
+        }
+    }
+
+    /**
+     * Returns whether a thread may take another normal task. Must be called
+     * with the lock held.
+     * @param queued the number of normal tasks that go before it.
+     */
+    private boolean bulkAllowed(int queued) {
+        return reserved == 0 || busyBulk + queued < maxThreads - reserved;
+    }
+
+    /**
+     * Hands a task to an idle thread, a new thread, or the queue, or applies
+     * the overflow policy. Must be called with the lock held.
+     * @return {@link #DISPATCHED}, {@link #CALLER_RUNS}, or
+     *     {@link #REJECTED}.
+     */
+    private int dispatch(Runnable runnable, String name, long time,
+            boolean priority) {
+        Lane lane = priority ? urgent : bulk;
+        // Idle threads take priority tasks first, so a priority task only
+        // has to wait for the priority tasks before it.
+        int before = priority ? urgent.count : urgent.count + bulk.count;
+        boolean allowed = priority || bulkAllowed(bulk.count);
+
+        if (idle > before && allowed) {
+            // Some idle thread will pick it up.
+            lane.add(runnable, name, time);
+            notify();
+            return DISPATCHED;
+        }
+
+        if (threads < maxThreads && allowed) {
+            startWorker(runnable, name, time, !priority);
+            return DISPATCHED;
+        }
+
+        if (urgent.count + bulk.count - idle < capacity) {
+            lane.add(runnable, name, time);
+            return DISPATCHED;
+        }
+
+        switch (overflow) {
+        case OVERFLOW_SPAWN:
+            if (logger.isDebugEnabled()) {
+                logger.debug("pool " + this.name + " saturated, "
+                        + "spawning thread " + (threads + 1));
+            }
+            startWorker(runnable, name, time, !priority);
+            return DISPATCHED;
+        case OVERFLOW_REJECT:
+            return REJECTED;
+        default:
+            // The caller must run it, outside the lock.
+            return CALLER_RUNS;
+        }
+    }
+
+    private void runHere(Runnable runnable, long time) {
+        long startTime = metrics.taskStarted(time);
+        try {
+            runnable.run();
+        } finally {
+            metrics.taskDone(startTime);
+        }
+    }
+
+    private void startWorker(Runnable runnable, String name, long time,
+            boolean isBulk) {
+        threads++;
+        if (isBulk) {
+            busyBulk++;
+        }
+        metrics.threadCreated();
+        new Worker(runnable, name, time, isBulk).start();
+    }
+
+    /**
+     * Registers that a thread finished a normal task. With reserved threads,
+     * idle threads may be waiting for this to take a queued normal task, so
+     * one of them is woken up; otherwise, it would wait for the timeout.
+     * Must be called with the lock held.
+     */
+    private void bulkDone() {
+        busyBulk--;
+        if (bulk.count > 0 && idle > 0 && bulkAllowed(0)) {
+            notify();
+        }
+    }
+
+    /**
+     * Replaces a worker that exits after a failed task. A replacement is
+     * only needed if there are queued tasks that no idle worker is going to
+     * take; otherwise, new threads are created when tasks arrive. Must be
+     * called with the lock held.
+     */
+    private void replace(Worker worker) {
+        if (worker.runsBulk) {
+            bulkDone();
+        }
+        threads--;
+        metrics.threadExpired();
+        if (urgent.count + bulk.count > idle) {
+            threads++;
+            metrics.threadCreated();
+            new Worker(null, name, 0, false).start();
+        }
+    }
+
+    /**
+     * Waits for a queued task and hands it to the specified worker. Priority
+     * tasks are taken first; normal tasks only if that does not occupy the
+     * reserved threads. Must be called with the lock held.
+     * @return <code>false</code> if the worker should exit.
+     */
+    private boolean fetch(Worker worker) {
+        if (worker.runsBulk) {
+            bulkDone();
+            worker.runsBulk = false;
+        }
+
+        while (true) {
+            if (urgent.count > 0) {
+                urgent.take(worker);
+                if (bulk.count > 0 && idle > 0 && bulkAllowed(0)) {
+                    // This worker may have been the one to take it.
+                    notify();
+                }
+                return true;
+            }
+            if (bulk.count > 0 && bulkAllowed(0)) {
+                bulk.take(worker);
+                worker.runsBulk = true;
+                busyBulk++;
+                return true;
+            }
+
+            if (shutdown && bulk.count == 0) {
+                threads--;
+                metrics.threadExpired();
+                return false;
+            }
+
+            long start = System.currentTimeMillis();
+            idle++;
+            try {
+                wait(TIMEOUT);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            idle--;
+
+            if (urgent.count == 0 && bulk.count == 0 && threads > coreThreads
+                    && System.currentTimeMillis() - start >= TIMEOUT) {
+                // Idle for too long, and not needed to keep the core alive.
+                threads--;
+                metrics.threadExpired();
+                return false;
+            }
+        }
+    }
+}
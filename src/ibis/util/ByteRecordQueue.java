@@ -0,0 +1,538 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded queue of variable-length byte records, for a single producer
+ * thread and a single consumer thread, such as a receive thread that hands
+ * serialized messages to a handler thread. Where {@link Queue} needs an
+ * object per message, this queue keeps the bytes themselves in a direct
+ * {@link ByteBuffer}, outside the Java heap, and does not allocate anything
+ * per record.
+ *
+ * The producer claims room for a record with {@link #claim(int)}, writes the
+ * record into the buffer that is returned, and publishes it with
+ * {@link #commit()}. The consumer gets the next record with {@link #read()},
+ * reads it in place, and hands the room back with {@link #release()}. The
+ * buffers that are returned are views of the ring, which are reused for
+ * every record, and are only valid until the record is committed or
+ * released.
+ *
+ * Each record is stored contiguously, after a 4-byte length, and is padded
+ * to a multiple of 8 bytes. A record that does not fit before the end of the
+ * ring starts at the beginning of it instead. Waiting is done like in
+ * {@link SPSCQueue}: first spinning, then yielding, then parking. The queue
+ * is not safe for use by more than one producer or more than one consumer
+ * at a time.
+ */
+public final class ByteRecordQueue {
+
+    /** Size of the length in front of each record. */
+    private static final int HEADER = 4;
+
+    /** Records are padded to a multiple of this. */
+    private static final int ALIGN = 8;
+
+    /** Length that marks the unused end of the ring before a wrap. */
+    private static final int PADDING = -1;
+
+    // Results of the wait methods.
+    private static final int DONE = 0;
+
+    private static final int TIMEOUT = 1;
+
+    private static final int INTERRUPTED = 2;
+
+    private final ByteBuffer ring;
+
+    private final int mask;
+
+    /** The view of the ring that is handed to the producer. */
+    private final ByteBuffer producerView;
+
+    /** The read-only view of the ring that is handed to the consumer. */
+    private final ByteBuffer consumerView;
+
+    private final PaddedCounter head = new PaddedCounter();
+
+    private final PaddedCounter tail = new PaddedCounter();
+
+    private final ParkingWaiters notEmpty = new ParkingWaiters();
+
+    private final ParkingWaiters notFull = new ParkingWaiters();
+
+    // The producer state and the consumer state are written by different
+    // threads, so they are kept apart in an array, with 7 longs on either
+    // side of each.
+
+    /** The head as last seen by the producer. */
+    private static final int HEAD_CACHE = 7;
+
+    /** Position of the claimed record, or -1. */
+    private static final int CLAIM_POS = 8;
+
+    private static final int CLAIM_LENGTH = 9;
+
+    /** The tail as last seen by the consumer. */
+    private static final int TAIL_CACHE = CLAIM_LENGTH + 8;
+
+    /** Position of the record that is being read, or -1. */
+    private static final int READ_POS = TAIL_CACHE + 1;
+
+    private static final int READ_SIZE = TAIL_CACHE + 2;
+
+    private final long[] state = new long[READ_SIZE + 8];
+
+    /**
+     * Constructs a new queue.
+     * @param capacity the size of the ring in bytes, including the lengths
+     *     and padding of the records. It is rounded up to a power of two, of
+     *     at least 64.
+     */
+    public ByteRecordQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("invalid capacity: "
+                    + capacity);
+        }
+        int size = 64;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        ring = ByteBuffer.allocateDirect(size);
+        mask = size - 1;
+        producerView = ring.duplicate();
+        consumerView = ring.asReadOnlyBuffer();
+        state[CLAIM_POS] = -1;
+        state[READ_POS] = -1;
+    }
+
+    /**
+     * Returns the size of the ring in bytes.
+     * @return the capacity.
+     */
+    public int capacity() {
+        return ring.capacity();
+    }
+
+    /**
+     * Returns the maximum length of a record. A record may take at most half
+     * of the ring, so that it always fits once the queue is empty, wherever
+     * the ring ends.
+     * @return the maximum record length in bytes.
+     */
+    public int maxRecordLength() {
+        return ring.capacity() / 2 - HEADER;
+    }
+
+    /**
+     * Returns the number of bytes in use, including the lengths and padding
+     * of the records. When other threads are using the queue, this is only
+     * an estimate.
+     * @return the number of bytes in use.
+     */
+    public int used() {
+        long used = tail.get() - head.get();
+        if (used < 0) {
+            return 0;
+        }
+        return used > ring.capacity() ? ring.capacity() : (int) used;
+    }
+
+    /**
+     * Claims room for a record of the specified length, if there is room,
+     * without waiting.
+     * @param length the length of the record.
+     * @return a buffer whose position and limit delimit the record, or
+     *     <code>null</code> if the queue is full.
+     */
+    public ByteBuffer tryClaim(int length) {
+        checkClaim(length);
+        if (!reserve(length)) {
+            return null;
+        }
+        return producerView();
+    }
+
+    /**
+     * Claims room for a record of the specified length. If the queue is
+     * full, it waits until there is room. An interrupt does not end the
+     * wait, but the interrupt status of the thread is kept.
+     * @param length the length of the record.
+     * @return a buffer whose position and limit delimit the record.
+     */
+    public ByteBuffer claim(int length) {
+        checkClaim(length);
+        if (!reserve(length)) {
+            awaitRoom(length, 0, false, false);
+        }
+        return producerView();
+    }
+
+    /**
+     * Claims room for a record of the specified length. If the queue is
+     * full, it waits until there is room, or the timeout has expired.
+     * @param length the length of the record.
+     * @param timeout the timeout; 0 or less means not to wait at all.
+     * @param unit the unit of the timeout.
+     * @return a buffer whose position and limit delimit the record, or
+     *     <code>null</code> if the timeout expired.
+     * @exception InterruptedException is thrown when the thread is
+     *     interrupted while waiting.
+     */
+    public ByteBuffer claim(int length, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        checkClaim(length);
+        if (!reserve(length)) {
+            if (timeout <= 0) {
+                return null;
+            }
+            int result = awaitRoom(length, unit.toNanos(timeout), true, true);
+            if (result == INTERRUPTED) {
+                throw new InterruptedException();
+            }
+            if (result == TIMEOUT) {
+                return null;
+            }
+        }
+        return producerView();
+    }
+
+    /**
+     * Publishes the claimed record, with the length it was claimed with.
+     */
+    public void commit() {
+        commit((int) state[CLAIM_LENGTH]);
+    }
+
+    /**
+     * Publishes the claimed record, with the specified length, which may be
+     * shorter than the length it was claimed with. This allows a producer to
+     * claim room for the largest possible record, and only publish what it
+     * actually wrote.
+     * @param length the length of the record.
+     */
+    public void commit(int length) {
+        if (state[CLAIM_POS] < 0) {
+            throw new IllegalStateException("no record claimed");
+        }
+        if (length < 0 || length > (int) state[CLAIM_LENGTH]) {
+            throw new IllegalArgumentException("invalid record length: "
+                    + length);
+        }
+        ring.putInt((int) state[CLAIM_POS] & mask, length);
+        // Publishes the record to the consumer.
+        tail.set(state[CLAIM_POS] + recordSize(length));
+        state[CLAIM_POS] = -1;
+        notEmpty.signal(1);
+    }
+
+    /**
+     * Copies a record into the queue, if there is room, without waiting.
+     * @param b the bytes of the record.
+     * @param off the offset of the record in <code>b</code>.
+     * @param len the length of the record.
+     * @return <code>false</code> if the queue is full.
+     */
+    public boolean offer(byte[] b, int off, int len) {
+        ByteBuffer buf = tryClaim(len);
+        if (buf == null) {
+            return false;
+        }
+        buf.put(b, off, len);
+        commit();
+        return true;
+    }
+
+    /**
+     * Copies a record into the queue. If the queue is full, it waits until
+     * there is room, like {@link #claim(int)} does.
+     * @param b the bytes of the record.
+     * @param off the offset of the record in <code>b</code>.
+     * @param len the length of the record.
+     */
+    public void enqueue(byte[] b, int off, int len) {
+        claim(len).put(b, off, len);
+        commit();
+    }
+
+    /**
+     * Returns the next record, if there is one, without waiting. The record
+     * must be released with {@link #release()} before the next one is read.
+     * @return a read-only buffer whose position and limit delimit the
+     *     record, or <code>null</code> if the queue is empty.
+     */
+    public ByteBuffer tryRead() {
+        checkRead();
+        if (!next()) {
+            return null;
+        }
+        return consumerView();
+    }
+
+    /**
+     * Returns the next record. If the queue is empty, it waits until a
+     * record is committed. An interrupt does not end the wait, but the
+     * interrupt status of the thread is kept.
+     * @return a read-only buffer whose position and limit delimit the
+     *     record.
+     */
+    public ByteBuffer read() {
+        checkRead();
+        if (!next()) {
+            awaitRecord(0, false, false);
+        }
+        return consumerView();
+    }
+
+    /**
+     * Returns the next record. If the queue is empty, it waits until a
+     * record is committed, or the timeout has expired.
+     * @param timeout the timeout; 0 or less means not to wait at all.
+     * @param unit the unit of the timeout.
+     * @return a read-only buffer whose position and limit delimit the
+     *     record, or <code>null</code> if the timeout expired.
+     * @exception InterruptedException is thrown when the thread is
+     *     interrupted while waiting.
+     */
+    public ByteBuffer read(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        checkRead();
+        if (!next()) {
+            if (timeout <= 0) {
+                return null;
+            }
+            int result = awaitRecord(unit.toNanos(timeout), true, true);
+            if (result == INTERRUPTED) {
+                throw new InterruptedException();
+            }
+            if (result == TIMEOUT) {
+                return null;
+            }
+        }
+        return consumerView();
+    }
+
+    /**
+     * Hands the room of the record that was read back to the producer.
+     */
+    public void release() {
+        if (state[READ_POS] < 0) {
+            throw new IllegalStateException("no record read");
+        }
+        head.set(state[READ_POS] + state[READ_SIZE]);
+        state[READ_POS] = -1;
+        notFull.signal(1);
+    }
+
+    private static int recordSize(int length) {
+        return (HEADER + length + ALIGN - 1) & ~(ALIGN - 1);
+    }
+
+    private void checkClaim(int length) {
+        if (state[CLAIM_POS] >= 0) {
+            throw new IllegalStateException("record already claimed");
+        }
+        if (length < 0 || length > maxRecordLength()) {
+            throw new IllegalArgumentException("invalid record length: "
+                    + length);
+        }
+    }
+
+    private void checkRead() {
+        if (state[READ_POS] >= 0) {
+            throw new IllegalStateException("record not released");
+        }
+    }
+
+    /**
+     * Reserves room for a record at the tail, if there is room. If the
+     * record does not fit before the end of the ring, the end is marked as
+     * padding and the record starts at the beginning.
+     * @return <code>false</code> if the queue is full.
+     */
+    private boolean reserve(int length) {
+        int size = recordSize(length);
+        long pos = tail.get();
+        int off = (int) pos & mask;
+        int toEnd = ring.capacity() - off;
+        int needed = size > toEnd ? toEnd + size : size;
+
+        if (pos + needed - state[HEAD_CACHE] > ring.capacity()) {
+            state[HEAD_CACHE] = head.get();
+            if (pos + needed - state[HEAD_CACHE] > ring.capacity()) {
+                return false;
+            }
+        }
+        if (size > toEnd) {
+            ring.putInt(off, PADDING);
+            pos += toEnd;
+            tail.set(pos);
+        }
+        state[CLAIM_POS] = pos;
+        state[CLAIM_LENGTH] = length;
+        return true;
+    }
+
+    /**
+     * Finds the next record, if there is one, skipping padding.
+     * @return <code>false</code> if the queue is empty.
+     */
+    private boolean next() {
+        while (true) {
+            long pos = head.get();
+            if (pos >= state[TAIL_CACHE]) {
+                state[TAIL_CACHE] = tail.get();
+                if (pos >= state[TAIL_CACHE]) {
+                    return false;
+                }
+            }
+            int off = (int) pos & mask;
+            int length = ring.getInt(off);
+            if (length == PADDING) {
+                head.set(pos + ring.capacity() - off);
+                notFull.signal(1);
+                continue;
+            }
+            state[READ_POS] = pos;
+            state[READ_SIZE] = recordSize(length);
+            return true;
+        }
+    }
+
+    private ByteBuffer producerView() {
+        int start = ((int) state[CLAIM_POS] & mask) + HEADER;
+        producerView.clear();
+        producerView.position(start);
+        producerView.limit(start + (int) state[CLAIM_LENGTH]);
+        return producerView;
+    }
+
+    private ByteBuffer consumerView() {
+        int start = (int) state[READ_POS] & mask;
+        int length = ring.getInt(start);
+        start += HEADER;
+        consumerView.clear();
+        consumerView.position(start);
+        consumerView.limit(start + length);
+        return consumerView;
+    }
+
+    /**
+     * Waits until there is room for a record, and reserves it.
+     * @param timeout the timeout in nanoseconds, if <code>timed</code>.
+     * @param timed whether to wait with a timeout.
+     * @param interruptible whether an interrupt ends the wait. If not, the
+     *     interrupt status is kept for the caller.
+     * @return {@link #DONE}, {@link #TIMEOUT}, or {@link #INTERRUPTED}.
+     */
+    private int awaitRoom(int length, long timeout, boolean timed,
+            boolean interruptible) {
+        long end = System.nanoTime() + timeout;
+        boolean interrupted = false;
+        int result = DONE;
+
+        for (int i = 0; i < RingQueue.SPINS + RingQueue.YIELDS; i++) {
+            if (i >= RingQueue.SPINS) {
+                Thread.yield();
+            }
+            if (reserve(length)) {
+                return DONE;
+            }
+            if (timed && end - System.nanoTime() <= 0) {
+                return TIMEOUT;
+            }
+        }
+
+        while (!reserve(length)) {
+            long nanos = 0;
+            if (timed) {
+                nanos = end - System.nanoTime();
+                if (nanos <= 0) {
+                    result = TIMEOUT;
+                    break;
+                }
+            }
+            notFull.register();
+            boolean done = reserve(length);
+            if (!done) {
+                notFull.park(nanos);
+            }
+            notFull.deregister(false);
+            if (done) {
+                break;
+            }
+            if (Thread.interrupted()) {
+                if (interruptible) {
+                    result = INTERRUPTED;
+                    break;
+                }
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    /**
+     * Waits until there is a record, and finds it.
+     * @param timeout the timeout in nanoseconds, if <code>timed</code>.
+     * @param timed whether to wait with a timeout.
+     * @param interruptible whether an interrupt ends the wait. If not, the
+     *     interrupt status is kept for the caller.
+     * @return {@link #DONE}, {@link #TIMEOUT}, or {@link #INTERRUPTED}.
+     */
+    private int awaitRecord(long timeout, boolean timed,
+            boolean interruptible) {
+        long end = System.nanoTime() + timeout;
+        boolean interrupted = false;
+        int result = DONE;
+
+        for (int i = 0; i < RingQueue.SPINS + RingQueue.YIELDS; i++) {
+            if (i >= RingQueue.SPINS) {
+                Thread.yield();
+            }
+            if (next()) {
+                return DONE;
+            }
+            if (timed && end - System.nanoTime() <= 0) {
+                return TIMEOUT;
+            }
+        }
+
+        while (!next()) {
+            long nanos = 0;
+            if (timed) {
+                nanos = end - System.nanoTime();
+                if (nanos <= 0) {
+                    result = TIMEOUT;
+                    break;
+                }
+            }
+            notEmpty.register();
+            boolean done = next();
+            if (!done) {
+                notEmpty.park(nanos);
+            }
+            notEmpty.deregister(false);
+            if (done) {
+                break;
+            }
+            if (Thread.interrupted()) {
+                if (interruptible) {
+                    result = INTERRUPTED;
+                    break;
+                }
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+}
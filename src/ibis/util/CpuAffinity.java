@@ -0,0 +1,100 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pins threads to a set of CPUs. This is only supported on Linux, where the
+ * current thread's kernel thread id is read from
+ * <code>/proc/thread-self/stat</code>, and the thread is pinned with
+ * <code>taskset</code>. On other systems, pinning is a no-op.
+ *
+ * Pinning forks a <code>taskset</code> process, which takes a few
+ * milliseconds, so it is only done once per thread, when the thread starts.
+ * Pools with pinned threads should keep their threads, rather than create
+ * them for every burst of work.
+ */
+final class CpuAffinity {
+
+    static final Logger logger = Logger.getLogger(CpuAffinity.class);
+
+    private static final File THREAD_STAT
+            = new File("/proc/thread-self/stat");
+
+    private static volatile boolean warned = false;
+
+    private CpuAffinity() {
+        // prevent construction.
+    }
+
+    /**
+     * Pins the current thread to the specified CPUs.
+     * @param cpus the CPU list, in the format accepted by
+     *     <code>taskset -c</code>, for instance <code>0-3,8</code>.
+     * @return <code>true</code> if the thread was pinned.
+     */
+    static boolean pin(String cpus) {
+        String tid;
+        try {
+            // Do not resolve the /proc/thread-self link with
+            // getCanonicalFile(): some JVMs cache canonical names, and would
+            // return the id of another thread.
+            tid = threadId();
+            Integer.parseInt(tid);
+        } catch (IOException e) {
+            warn("cannot determine thread id");
+            return false;
+        } catch (NumberFormatException e) {
+            warn("cannot determine thread id");
+            return false;
+        }
+
+        RunProcess taskset = new RunProcess("taskset", "-p", "-c", cpus, tid);
+        taskset.run();
+        if (taskset.getExitStatus() != 0) {
+            warn("taskset failed: " + new String(taskset.getStderr()).trim());
+            return false;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("pinned thread " + Thread.currentThread().getName()
+                    + " (" + tid + ") to CPUs " + cpus);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the kernel thread id of the current thread: the first field
+     * of its <code>stat</code> file.
+     */
+    private static String threadId() throws IOException {
+        byte[] buf = new byte[32];
+        int n = 0;
+        FileInputStream in = new FileInputStream(THREAD_STAT);
+        try {
+            int r;
+            while (n < buf.length
+                    && (r = in.read(buf, n, buf.length - n)) > 0) {
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        int end = 0;
+        while (end < n && buf[end] != ' ') {
+            end++;
+        }
+        return new String(buf, 0, end, "US-ASCII");
+    }
+
+    private static void warn(String message) {
+        if (!warned) {
+            warned = true;
+            logger.warn("could not set CPU affinity: " + message);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds, with power-of-two buckets.
+ * Recording a value takes a few atomic increments and never allocates,
+ * so it can be done on hot paths.
+ *
+ * A histogram that is recorded into by many threads at once can be
+ * striped, like a {@link StripedCounter}: each thread then records into
+ * its own row of buckets, and reading the histogram adds up the rows.
+ */
+final class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    // Layout of a row: the buckets, then the count, the total, and the
+    // maximum. Bucket 0 counts zero durations, bucket i [2^(i-1), 2^i).
+    private static final int COUNT = BUCKETS;
+
+    private static final int TOTAL = BUCKETS + 1;
+
+    private static final int MAX = BUCKETS + 2;
+
+    /** Length of a row: a multiple of a cache line. */
+    private static final int ROW = 9 * StripedCounter.STRIDE;
+
+    private final int stripes;
+
+    // One cache line of padding before the first row.
+    private final AtomicLongArray rows;
+
+    /**
+     * Creates a histogram with a single row.
+     */
+    LatencyHistogram() {
+        this(false);
+    }
+
+    /**
+     * Creates a histogram.
+     * @param striped whether to give threads their own rows.
+     */
+    LatencyHistogram(boolean striped) {
+        stripes = striped ? StripedCounter.STRIPES : 1;
+        rows = new AtomicLongArray(StripedCounter.STRIDE + stripes * ROW);
+    }
+
+    /**
+     * Records a duration.
+     * @param nanos the duration in nanoseconds.
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            // nanoTime is not monotonic across cores on some old systems.
+            nanos = 0;
+        }
+        int row = StripedCounter.STRIDE;
+        if (stripes > 1) {
+            row += StripedCounter.stripe() * ROW;
+        }
+        rows.incrementAndGet(row + BUCKETS
+                - Long.numberOfLeadingZeros(nanos));
+        rows.incrementAndGet(row + COUNT);
+        rows.addAndGet(row + TOTAL, nanos);
+
+        long m;
+        while (nanos > (m = rows.get(row + MAX))) {
+            if (rows.compareAndSet(row + MAX, m, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of a field over the rows.
+     */
+    private long sum(int field) {
+        long sum = 0;
+        for (int i = 0; i < stripes; i++) {
+            sum += rows.get(StripedCounter.STRIDE + i * ROW + field);
+        }
+        return sum;
+    }
+
+    long getCount() {
+        return sum(COUNT);
+    }
+
+    long getMax() {
+        long max = 0;
+        for (int i = 0; i < stripes; i++) {
+            max = Math.max(max,
+                    rows.get(StripedCounter.STRIDE + i * ROW + MAX));
+        }
+        return max;
+    }
+
+    double getMean() {
+        long n = sum(COUNT);
+        return n == 0 ? 0.0 : ((double) sum(TOTAL)) / n;
+    }
+
+    /**
+     * Returns an upper bound of the specified percentile: the upper
+     * boundary of the bucket that contains it.
+     * @param percentile the percentile, between 0 and 100.
+     * @return the upper bound of the percentile in nanoseconds.
+     */
+    long getPercentile(double percentile) {
+        long n = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = sum(i);
+            n += counts[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100.0 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,138 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue for any number of producer threads and a
+ * single consumer thread. It has the same {@link #enqueue(Object)} and
+ * {@link #dequeue(long)} semantics as {@link Queue}, except that
+ * {@link #enqueue(Object)} waits when the queue is full.
+ *
+ * Producers claim a slot with a compare-and-set on the tail, just like in
+ * {@link MPMCQueue}, and publish the object through the sequence number of
+ * the slot. The consumer owns the head, and takes objects without a
+ * compare-and-set. The queue is not safe for use by more than one consumer
+ * at a time.
+ */
+public final class MPSCQueue extends RingQueue {
+
+    private final AtomicLongArray sequences;
+
+    private final PaddedCounter head = new PaddedCounter();
+
+    private final PaddedCounter tail = new PaddedCounter();
+
+    /**
+     * Constructs a new queue.
+     * @param capacity the maximum number of elements in the queue. It is
+     *     rounded up to a power of two, of at least 2.
+     */
+    public MPSCQueue(int capacity) {
+        // With a single slot, a full slot and a slot that is free for the
+        // next round would have the same sequence number.
+        super(capacity, 2);
+        sequences = new AtomicLongArray(buffer.length);
+        for (int i = 0; i < buffer.length; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Returns the length of the queue. When other threads are using the
+     * queue, this is only an estimate.
+     * @return the length of the queue.
+     */
+    public int size() {
+        return size(head.get(), tail.get());
+    }
+
+    boolean put(Object o) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer[index] = o;
+                    // Publishes the object to the consumer.
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // The slot still holds an object from the previous round.
+                return false;
+            } else {
+                // Another producer claimed this slot.
+                pos = tail.get();
+            }
+        }
+    }
+
+    int putBatch(Object[] src, int off, int len) {
+        if (len <= 0) {
+            // The loop below would wait for a slot it does not need.
+            return 0;
+        }
+        long pos = tail.get();
+        while (true) {
+            // Count the free slots, and claim them all at once.
+            int n = 0;
+            while (n < len
+                    && sequences.get((int) (pos + n) & mask) == pos + n) {
+                n++;
+            }
+            if (n == 0) {
+                long diff = sequences.get((int) pos & mask) - pos;
+                if (diff < 0) {
+                    return 0;
+                }
+                pos = tail.get();
+                continue;
+            }
+            if (tail.compareAndSet(pos, pos + n)) {
+                for (int i = 0; i < n; i++) {
+                    int index = (int) (pos + i) & mask;
+                    buffer[index] = src[off + i];
+                    sequences.set(index, pos + i + 1);
+                }
+                return n;
+            }
+            pos = tail.get();
+        }
+    }
+
+    Object take() {
+        long pos = head.get();
+        int index = (int) pos & mask;
+        if (sequences.get(index) != pos + 1) {
+            // The slot has not been filled yet.
+            return EMPTY;
+        }
+        Object result = buffer[index];
+        buffer[index] = null;
+        // Hands the slot to the producer of the next round.
+        sequences.set(index, pos + mask + 1);
+        head.set(pos + 1);
+        return result;
+    }
+
+    int takeBatch(Object[] dst, int off, int len) {
+        long pos = head.get();
+        int n = 0;
+        while (n < len
+                && sequences.get((int) (pos + n) & mask) == pos + n + 1) {
+            int index = (int) (pos + n) & mask;
+            dst[off + n] = buffer[index];
+            buffer[index] = null;
+            sequences.set(index, pos + n + mask + 1);
+            n++;
+        }
+        if (n > 0) {
+            head.set(pos + n);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,151 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A FIFO queue of objects, which can be enqueued, dequeued, or dequeued
+ * with a deadline. Implemented by {@link Queue}, an unbounded or bounded
+ * queue for any number of threads, and by ring buffers that are specialized
+ * for the number of producer and consumer threads: {@link MPMCQueue},
+ * {@link MPSCQueue}, and {@link SPSCQueue}.
+ *
+ * A bounded queue pushes back on producers when it is full: they can wait
+ * for room, wait for room with a timeout, or fail right away.
+ */
+public interface ObjectQueue {
+
+    /**
+     * Enqueues the specified object. If there are threads waiting, a single
+     * one is woken up. A bounded queue waits for room when it is full.
+     * @param o the object to be enqueued.
+     */
+    void enqueue(Object o);
+
+    /**
+     * Enqueues the specified object if there is room, without waiting.
+     * @param o the object to be enqueued.
+     * @return <code>false</code> if the queue is full.
+     */
+    boolean offer(Object o);
+
+    /**
+     * Enqueues the specified object. If the queue is full it will wait until
+     * there is room, or the timeout has expired. The timeout is measured
+     * with {@link System#nanoTime()}, and an interrupt ends the wait.
+     *
+     * @param o the object to be enqueued.
+     * @param timeout the timeout; 0 or less means not to wait at all.
+     * @param unit the unit of the timeout.
+     * @return <code>false</code> if the timeout expired.
+     * @exception InterruptedException is thrown when the thread is
+     *     interrupted while waiting.
+     */
+    boolean enqueue(Object o, long timeout, TimeUnit unit)
+            throws InterruptedException;
+
+    /**
+     * Dequeues the head of the queue. If the queue is empty it
+     * will wait until something is added to the queue.
+     *
+     * @return the dequeued object.
+     */
+    Object dequeue();
+
+    /**
+     * Dequeues the head of the queue. If the queue is empty it
+     * will wait until something is added to the queue, or the deadline
+     * has passed.
+     *
+     * @param deadline the deadline expressed in milliseconds
+     *		   since 1-1-1970. a value of "0" will cause this
+     *		   function to wait forever, on -1 it will not wait
+     *		   at all.
+     *
+     * @return the dequeued object, or null if the deadline passed
+     */
+    Object dequeue(long deadline);
+
+    /**
+     * Dequeues the head of the queue. If the queue is empty it will wait
+     * until something is added to the queue, or the timeout has expired.
+     * Unlike {@link #dequeue(long)}, the timeout is relative and measured
+     * with {@link System#nanoTime()}, so it is not affected by changes of
+     * the wall clock, and an interrupt ends the wait.
+     *
+     * @param timeout the timeout; 0 or less means not to wait at all.
+     * @param unit the unit of the timeout.
+     * @return the dequeued object, or null if the timeout expired.
+     * @exception InterruptedException is thrown when the thread is
+     *     interrupted while waiting.
+     */
+    Object dequeue(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Enqueues the specified objects, in the order of the collection. Waiting
+     * threads are woken up once for the whole batch, rather than once per
+     * object. A bounded queue waits for room when it is full.
+     * @param objects the objects to be enqueued.
+     */
+    void enqueueAll(Collection<?> objects);
+
+    /**
+     * Dequeues up to <code>dst.length</code> objects from the head of the
+     * queue into <code>dst</code>. If the queue is empty it will wait until
+     * something is added to the queue, or the deadline has passed, like
+     * {@link #dequeue(long)} does; once there is something, it takes what
+     * is there without waiting for more.
+     *
+     * @param dst the array to store the dequeued objects in.
+     * @param deadline the deadline, as for {@link #dequeue(long)}.
+     * @return the number of dequeued objects, which is 0 only if the
+     *     deadline passed.
+     */
+    int dequeueBatch(Object[] dst, long deadline);
+
+    /**
+     * Dequeues up to <code>dst.length</code> objects, like
+     * {@link #dequeueBatch(Object[], long)} does, but with a relative
+     * timeout, like {@link #dequeue(long, TimeUnit)}.
+     *
+     * @param dst the array to store the dequeued objects in.
+     * @param timeout the timeout; 0 or less means not to wait at all.
+     * @param unit the unit of the timeout.
+     * @return the number of dequeued objects, which is 0 only if the
+     *     timeout expired.
+     * @exception InterruptedException is thrown when the thread is
+     *     interrupted while waiting.
+     */
+    int dequeueBatch(Object[] dst, long timeout, TimeUnit unit)
+            throws InterruptedException;
+
+    /**
+     * Moves up to <code>max</code> objects from the head of the queue to the
+     * specified collection, without waiting.
+     * @param c the collection to add the objects to.
+     * @param max the maximum number of objects to move.
+     * @return the number of objects moved.
+     */
+    int drainTo(Collection<Object> c, int max);
+
+    /**
+     * Returns the length of the queue.
+     * @return the length of the queue.
+     */
+    int size();
+
+    /**
+     * Returns the maximum number of objects in the queue.
+     * @return the capacity, or {@link Integer#MAX_VALUE} if the queue is
+     *     unbounded.
+     */
+    int capacity();
+
+    /**
+     * Returns the statistics of this queue.
+     * @return the statistics.
+     */
+    QueueMetrics getMetrics();
+}
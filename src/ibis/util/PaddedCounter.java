@@ -0,0 +1,33 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that has a cache line to itself, so that counters that are
+ * updated by different threads, such as the head and the tail of a ring
+ * buffer, do not slow each other down by false sharing.
+ *
+ * The counter is the middle element of an array, so that the elements on
+ * both sides keep other objects at a distance.
+ */
+final class PaddedCounter {
+
+    // 7 longs on either side cover a 64-byte cache line.
+    private static final int INDEX = 7;
+
+    private final AtomicLongArray value = new AtomicLongArray(2 * INDEX + 1);
+
+    long get() {
+        return value.get(INDEX);
+    }
+
+    void set(long newValue) {
+        value.set(INDEX, newValue);
+    }
+
+    boolean compareAndSet(long expect, long update) {
+        return value.compareAndSet(INDEX, expect, update);
+    }
+}
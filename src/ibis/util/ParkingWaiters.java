@@ -0,0 +1,99 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A set of threads that are parked until some condition may have changed,
+ * used by the lock-free queues instead of monitor wait/notify.
+ *
+ * A waiting thread registers itself, checks the condition again, and only
+ * then parks, so that a signal cannot get lost between the check and the
+ * park. A signal removes the woken thread from the set, so a thread
+ * registers again for every round of waiting. Signalling only costs a
+ * volatile read when nobody waits.
+ */
+final class ParkingWaiters {
+
+    private final ConcurrentLinkedQueue<Thread> threads
+            = new ConcurrentLinkedQueue<Thread>();
+
+    /**
+     * Registers the current thread as a waiter. Must be followed by a
+     * check of the condition, at most one {@link #park(long)} call, and
+     * {@link #deregister(boolean)}.
+     */
+    void register() {
+        threads.add(Thread.currentThread());
+    }
+
+    /**
+     * Removes the current thread from the waiters.
+     * @param consumed whether the thread consumed what it waited for after
+     *     it registered. If so, and it was also signalled, the signal may
+     *     have been meant for something that is still there, so it is
+     *     passed on to another waiter.
+     */
+    void deregister(boolean consumed) {
+        if (!threads.remove(Thread.currentThread()) && consumed) {
+            signal();
+        }
+    }
+
+    /**
+     * Parks the current thread until it is signalled, the timeout expires,
+     * or it is interrupted. May also return spuriously.
+     * @param nanos the timeout in nanoseconds, or 0 to wait without one.
+     */
+    void park(long nanos) {
+        if (nanos == 0) {
+            LockSupport.park(this);
+        } else {
+            LockSupport.parkNanos(this, nanos);
+        }
+    }
+
+    /**
+     * Wakes up a single waiter, if there is one.
+     * @return the number of threads woken up.
+     */
+    int signal() {
+        if (!threads.isEmpty()) {
+            Thread t = threads.poll();
+            if (t != null) {
+                LockSupport.unpark(t);
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Wakes up the specified number of waiters, or all waiters if there
+     * are fewer.
+     * @param n the number of waiters to wake up.
+     * @return the number of threads woken up.
+     */
+    int signal(int n) {
+        int woken = 0;
+        if (!threads.isEmpty()) {
+            Thread t;
+            for (; woken < n && (t = threads.poll()) != null; woken++) {
+                LockSupport.unpark(t);
+            }
+        }
+        return woken;
+    }
+
+    /**
+     * Wakes up all waiters.
+     */
+    void signalAll() {
+        Thread t;
+        while ((t = threads.poll()) != null) {
+            LockSupport.unpark(t);
+        }
+    }
+}
@@ -2,51 +2,141 @@
 
 package ibis.util;
 
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
 /**
  * A simple queue class. Objects can be enqueued, dequeued, or dequeued
  * with a deadline.
+ *
+ * By default, the queue is unbounded. A queue that is constructed with a
+ * capacity pushes back on producers when it is full:
+ * {@link #enqueue(Object)} waits for room, {@link #offer(Object)} fails,
+ * and {@link #enqueue(Object, long, TimeUnit)} waits for room until a
+ * timeout expires.
+ *
+ * See {@link MPMCQueue}, {@link MPSCQueue}, and {@link SPSCQueue} for
+ * bounded, lock-free alternatives.
  */
-public class Queue {
+public class Queue implements ObjectQueue {
     static class QueueNode {
         QueueNode next;
 
         Object data;
     }
 
+    // Results of awaitRoom().
+    private static final int ROOM = 0;
+
+    private static final int TIMEOUT = 1;
+
+    private static final int INTERRUPTED = 2;
+
     QueueNode head, tail;
 
     int size;
 
+    private final int capacity;
+
+    // Producers and consumers wait on the same monitor, so a notify must
+    // only be used when all waiters wait for the same thing.
+    private int consumersWaiting = 0;
+
+    private int producersWaiting = 0;
+
+    // Created by the first call to getMetrics(), so that the many queues
+    // whose statistics are never looked at do not carry them.
+    private QueueMetrics metrics = null;
+
     /**
-     * Constructs a new queue.
+     * Constructs a new, unbounded queue.
      */
     public Queue() {
-        /* do nothing */
+        this.capacity = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Constructs a new queue that holds at most the specified number of
+     * objects.
+     * @param capacity the maximum number of objects in the queue.
+     */
+    public Queue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("invalid capacity: "
+                    + capacity);
+        }
+        this.capacity = capacity;
     }
 
     /**
      * Enqueues the specified object, and notifies: if there
      * are threads waiting, a single one is notified.
+     * If the queue is full, it waits until there is room. An interrupt
+     * does not end that wait, but the interrupt status of the thread is
+     * kept.
      * @param o the object to be enqueued.
      */
     public synchronized void enqueue(Object o) {
-        QueueNode node = new QueueNode();
-        node.data = o;
-        if (tail == null) {
-            head = node;
-        } else {
-            tail.next = node;
+        if (size >= capacity) {
+            awaitRoom(0, false, false);
         }
+        add(o);
+        signalConsumers(1);
+    }
 
-        tail = node;
-        size++;
+    public synchronized boolean offer(Object o) {
+        if (size >= capacity) {
+            if (metrics != null) {
+                metrics.rejected();
+            }
+            return false;
+        }
+        add(o);
+        signalConsumers(1);
+        return true;
+    }
+
+    public synchronized boolean enqueue(Object o, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (size >= capacity) {
+            int result = TIMEOUT;
+            if (timeout > 0) {
+                result = awaitRoom(unit.toNanos(timeout), true, true);
+            }
+            if (result == INTERRUPTED) {
+                throw new InterruptedException();
+            }
+            if (result == TIMEOUT) {
+                if (metrics != null) {
+                    metrics.rejected();
+                }
+                return false;
+            }
+        }
+        add(o);
+        signalConsumers(1);
+        return true;
+    }
 
-        notify();
+    public synchronized void enqueueAll(Collection<?> objects) {
+        int n = 0;
+        for (Object o : objects) {
+            if (size >= capacity) {
+                // Let the consumers make room.
+                signalConsumers(n);
+                n = 0;
+                awaitRoom(0, false, false);
+            }
+            add(o);
+            n++;
+        }
+        signalConsumers(n);
     }
 
     /**
      * Dequeues the head of the queue. If the queue is empty it
-     * will wait until something is added to the queue.
+     * will wait until something is added to the queue. An interrupt does
+     * not end that wait, but the interrupt status of the thread is kept.
      *
      * @return the dequeued object.
      */
@@ -57,49 +147,309 @@ public class Queue {
     /**
      * Dequeues the head of the queue. If the queue is empty it
      * will wait until something is added to the queue, or the deadline
-     * has passed.
+     * has passed. An interrupt does not end that wait, but the interrupt
+     * status of the thread is kept.
      *
-     * @param deadline the deadline expressed in milliseconds 
+     * @param deadline the deadline expressed in milliseconds
      *		   since 1-1-1970. a value of "0" will cause this
-     *		   function to wait forever, on -1 it will not wait 
+     *		   function to wait forever, on -1 it will not wait
      *		   at all.
      *
      * @return the dequeued object, or null if the deadline passed
      */
     public synchronized Object dequeue(long deadline) {
-        while (head == null) {
-            if (deadline == -1) {
-                return null;
-            } else if (deadline == 0) {
-                try {
-                    wait();
-                } catch (Exception e) {
-                    // Ignore.
-                }
-            } else {
-                long time = System.currentTimeMillis();
+        if (!await(deadline)) {
+            return null;
+        }
+        return take();
+    }
 
-                if (time >= deadline) {
-                    return null;
-                }
-                try {
-                    wait(deadline - time);
-                } catch (Exception e) {
-                    //IGNORE
-                }
-            }
+    /**
+     * Dequeues the head of the queue. If the queue is empty it will wait
+     * until something is added to the queue, or the timeout has expired.
+     * The timeout is measured with {@link System#nanoTime()}, but the wait
+     * itself is a monitor wait, which most JVMs round up to whole
+     * milliseconds; the ring-buffer queues wait with nanosecond resolution.
+     *
+     * @param timeout the timeout; 0 or less means not to wait at all.
+     * @param unit the unit of the timeout.
+     * @return the dequeued object, or null if the timeout expired.
+     * @exception InterruptedException is thrown when the thread is
+     *     interrupted while waiting.
+     */
+    public synchronized Object dequeue(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (!awaitNanos(unit.toNanos(timeout))) {
+            return null;
+        }
+        return take();
+    }
+
+    public synchronized int dequeueBatch(Object[] dst, long deadline) {
+        if (dst.length == 0 || !await(deadline)) {
+            return 0;
+        }
+        return take(dst, dst.length);
+    }
+
+    public synchronized int dequeueBatch(Object[] dst, long timeout,
+            TimeUnit unit) throws InterruptedException {
+        if (dst.length == 0 || !awaitNanos(unit.toNanos(timeout))) {
+            return 0;
+        }
+        return take(dst, dst.length);
+    }
+
+    public synchronized int drainTo(Collection<Object> c, int max) {
+        int n = 0;
+        for (; n < max && head != null; n++) {
+            c.add(head.data);
+            head = head.next;
+        }
+        if (head == null) {
+            tail = null;
+        }
+        size -= n;
+        signalProducers(n);
+        return n;
+    }
+
+    /**
+     * Returns the maximum number of objects in the queue.
+     * @return the capacity, or {@link Integer#MAX_VALUE} if the queue is
+     *     unbounded.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the statistics of this queue. The queue only keeps
+     * statistics from the first call of this method on.
+     * @return the statistics.
+     */
+    public synchronized QueueMetrics getMetrics() {
+        if (metrics == null) {
+            metrics = new QueueMetrics(this);
+        }
+        return metrics;
+    }
+
+    /**
+     * Appends an object to the queue. Must be called with the lock held.
+     */
+    private void add(Object o) {
+        QueueNode node = new QueueNode();
+        node.data = o;
+        if (tail == null) {
+            head = node;
+        } else {
+            tail.next = node;
         }
 
+        tail = node;
+        size++;
+    }
+
+    /**
+     * Takes the head of the non-empty queue. Must be called with the lock
+     * held.
+     */
+    private Object take() {
         QueueNode result = head;
         head = result.next;
         if (head == null) {
             tail = null;
         }
         size--;
+        signalProducers(1);
 
         return result.data;
     }
 
+    /**
+     * Moves up to <code>max</code> objects from the head of the queue to
+     * the specified array. Must be called with the lock held.
+     */
+    private int take(Object[] dst, int max) {
+        int n = 0;
+        for (; n < max && head != null; n++) {
+            dst[n] = head.data;
+            head = head.next;
+        }
+        if (head == null) {
+            tail = null;
+        }
+        size -= n;
+        signalProducers(n);
+        return n;
+    }
+
+    /**
+     * Wakes up consumers after <code>n</code> objects were added. Must be
+     * called with the lock held.
+     */
+    private void signalConsumers(int n) {
+        if (consumersWaiting > 0 && n > 0) {
+            if (n == 1 && producersWaiting == 0) {
+                notify();
+                if (metrics != null) {
+                    metrics.wokeUp(1);
+                }
+            } else {
+                notifyAll();
+                if (metrics != null) {
+                    metrics.wokeUp(consumersWaiting + producersWaiting);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wakes up producers after <code>n</code> objects were removed. Must be
+     * called with the lock held.
+     */
+    private void signalProducers(int n) {
+        if (producersWaiting > 0 && n > 0) {
+            if (n == 1 && consumersWaiting == 0) {
+                notify();
+                if (metrics != null) {
+                    metrics.wokeUp(1);
+                }
+            } else {
+                notifyAll();
+                if (metrics != null) {
+                    metrics.wokeUp(consumersWaiting + producersWaiting);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the queue is not full, or the timeout has expired.
+     * Must be called with the lock held.
+     * @param nanos the timeout in nanoseconds, if <code>timed</code>.
+     * @param timed whether to wait with a timeout.
+     * @param interruptible whether an interrupt ends the wait. If not, the
+     *     interrupt status is kept for the caller.
+     * @return {@link #ROOM}, {@link #TIMEOUT}, or {@link #INTERRUPTED}.
+     */
+    private int awaitRoom(long nanos, boolean timed, boolean interruptible) {
+        long start = System.nanoTime();
+        long end = start + nanos;
+        boolean interrupted = false;
+        int result = ROOM;
+
+        producersWaiting++;
+        while (size >= capacity) {
+            if (timed) {
+                nanos = end - System.nanoTime();
+                if (nanos <= 0) {
+                    result = TIMEOUT;
+                    break;
+                }
+            }
+            try {
+                if (timed) {
+                    wait(nanos / 1000000, (int) (nanos % 1000000));
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if (interruptible) {
+                    result = INTERRUPTED;
+                    break;
+                }
+                interrupted = true;
+            }
+        }
+        producersWaiting--;
+
+        if (metrics != null) {
+            metrics.producerWaited(System.nanoTime() - start);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    /**
+     * Waits until the queue is not empty, or the deadline has passed.
+     * The deadline is converted to a {@link System#nanoTime()} deadline
+     * once, so that changes of the wall clock during the wait do not
+     * matter. An interrupt does not end the wait, but the interrupt status
+     * of the thread is kept. Must be called with the lock held.
+     * @return <code>false</code> if the deadline passed.
+     */
+    private boolean await(long deadline) {
+        if (head != null || deadline == -1) {
+            return head != null;
+        }
+        long end = 0;
+        if (deadline != 0) {
+            end = System.nanoTime()
+                    + (deadline - System.currentTimeMillis()) * 1000000L;
+        }
+        boolean interrupted = false;
+        if (metrics != null) {
+            metrics.consumerWaited();
+        }
+        consumersWaiting++;
+        try {
+            while (head == null) {
+                try {
+                    if (deadline == 0) {
+                        wait();
+                    } else {
+                        long nanos = end - System.nanoTime();
+
+                        if (nanos <= 0) {
+                            return false;
+                        }
+                        wait(nanos / 1000000, (int) (nanos % 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return true;
+        } finally {
+            consumersWaiting--;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits until the queue is not empty, or the timeout has expired.
+     * Must be called with the lock held.
+     * @return <code>false</code> if the timeout expired.
+     */
+    private boolean awaitNanos(long nanos) throws InterruptedException {
+        if (head != null || nanos <= 0) {
+            return head != null;
+        }
+        long end = System.nanoTime() + nanos;
+        if (metrics != null) {
+            metrics.consumerWaited();
+        }
+        consumersWaiting++;
+        try {
+            while (head == null) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                wait(nanos / 1000000, (int) (nanos % 1000000));
+                nanos = end - System.nanoTime();
+            }
+            return true;
+        } finally {
+            consumersWaiting--;
+        }
+    }
+
     /**
      * Returns the length of the queue.
      * @return the length of the queue.
@@ -0,0 +1,144 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Live statistics of a queue: its depth, how often and how long producers
+ * waited for room, how often consumers waited for objects, and how many
+ * threads were woken up. Only the slow paths of the queue update the
+ * statistics, so they are always on; a {@link Queue}, of which there are
+ * usually many, only creates them when they are first asked for. The
+ * statistics can be read through this class, or through JMX after
+ * {@link #registerMBean(String)}.
+ */
+public final class QueueMetrics implements QueueMetricsMBean {
+
+    static final Logger logger = Logger.getLogger(QueueMetrics.class);
+
+    private final ObjectQueue queue;
+
+    private final AtomicLong producerWaits = new AtomicLong();
+
+    private final AtomicLong producerWaitTime = new AtomicLong();
+
+    private final AtomicLong consumerWaits = new AtomicLong();
+
+    private final AtomicLong spinWaits = new AtomicLong();
+
+    private final AtomicLong wakeups = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final LatencyHistogram producerWait = new LatencyHistogram();
+
+    QueueMetrics(ObjectQueue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Records that a producer waited for room.
+     * @param nanos the time it waited.
+     */
+    void producerWaited(long nanos) {
+        producerWaits.incrementAndGet();
+        producerWaitTime.addAndGet(nanos);
+        producerWait.record(nanos);
+    }
+
+    /** Records that a consumer waited for an object. */
+    void consumerWaited() {
+        consumerWaits.incrementAndGet();
+    }
+
+    /** Records a wait that ended without parking the thread. */
+    void spinWaited() {
+        spinWaits.incrementAndGet();
+    }
+
+    /**
+     * Records that threads were woken up.
+     * @param count the number of threads.
+     */
+    void wokeUp(int count) {
+        if (count > 0) {
+            wakeups.addAndGet(count);
+        }
+    }
+
+    /** Records an object that was refused because the queue was full. */
+    void rejected() {
+        rejected.incrementAndGet();
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server, under the
+     * name <code>ibis.util:type=Queue,name=</code><i>name</i>.
+     * @param name the name of the queue.
+     * @return <code>true</code> if the registration succeeded.
+     */
+    public boolean registerMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("ibis.util:type=Queue,name=" + name));
+            return true;
+        } catch (Exception e) {
+            logger.warn("could not register queue statistics of " + name
+                    + " with JMX", e);
+            return false;
+        }
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return queue.capacity();
+    }
+
+    public long getProducerWaits() {
+        return producerWaits.get();
+    }
+
+    public long getProducerWaitTime() {
+        return producerWaitTime.get();
+    }
+
+    public long getProducerWaitTime99() {
+        return producerWait.getPercentile(99.0);
+    }
+
+    public long getMaxProducerWaitTime() {
+        return producerWait.getMax();
+    }
+
+    public long getConsumerWaits() {
+        return consumerWaits.get();
+    }
+
+    public long getSpinWaits() {
+        return spinWaits.get();
+    }
+
+    public long getWakeups() {
+        return wakeups.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public String toString() {
+        return "depth " + getDepth() + " producer waits " + getProducerWaits()
+                + " (" + getProducerWaitTime() + " ns) consumer waits "
+                + getConsumerWaits() + " spin waits " + getSpinWaits()
+                + " wakeups " + getWakeups() + " rejected " + getRejected();
+    }
+}
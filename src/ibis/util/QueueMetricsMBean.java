@@ -0,0 +1,42 @@
+/* $Id$ */
+
+package ibis.util;
+
+/**
+ * JMX management interface of {@link QueueMetrics}.
+ * All times are in nanoseconds.
+ */
+public interface QueueMetricsMBean {
+
+    /** @return the number of objects in the queue. */
+    int getDepth();
+
+    /** @return the maximum number of objects in the queue. */
+    int getCapacity();
+
+    /** @return the number of times a producer had to wait for room. */
+    long getProducerWaits();
+
+    /** @return the total time producers spent waiting for room. */
+    long getProducerWaitTime();
+
+    /** @return the 99th percentile of the time a producer waited. */
+    long getProducerWaitTime99();
+
+    /** @return the maximum time a producer waited. */
+    long getMaxProducerWaitTime();
+
+    /** @return the number of times a consumer had to wait for an object. */
+    long getConsumerWaits();
+
+    /** @return the number of waits that ended while spinning or yielding,
+     *  without parking the thread. */
+    long getSpinWaits();
+
+    /** @return the number of threads woken up by the other side. */
+    long getWakeups();
+
+    /** @return the number of objects that were refused because the queue
+     *  was full. */
+    long getRejected();
+}
@@ -0,0 +1,432 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base class of the bounded ring-buffer queues. Subclasses provide the
+ * non-blocking {@link #put(Object)} and {@link #take()} for their number of
+ * producers and consumers, and batch versions of them that claim a run of
+ * slots at once; this class adds the waiting.
+ *
+ * A thread that has to wait, for room or for an object, first spins for a
+ * short while, then yields a number of times, and only then parks. Under
+ * load, the other side usually comes through while spinning, which avoids
+ * the cost of parking and unparking; an idle queue does not burn a core.
+ * Parked threads are woken up by the other side, which only pays for that
+ * when somebody is actually parked.
+ */
+abstract class RingQueue implements ObjectQueue {
+
+    /** Returned by {@link #take()} when the queue is empty. */
+    static final Object EMPTY = new Object();
+
+    /** Returned by {@link #waitAndTake} when the wait was interrupted. */
+    private static final Object INTERRUPTED = new Object();
+
+    /** Number of busy spins before yielding. Spinning is useless when the
+     *  other side cannot run at the same time. */
+    static final int SPINS
+            = Runtime.getRuntime().availableProcessors() > 1 ? 128 : 0;
+
+    /** Number of yields before parking. */
+    static final int YIELDS = 16;
+
+    /** Chunk size used by {@link #drainTo(Collection, int)}. */
+    private static final int DRAIN_CHUNK = 256;
+
+    final Object[] buffer;
+
+    final int mask;
+
+    private final ParkingWaiters notEmpty = new ParkingWaiters();
+
+    private final ParkingWaiters notFull = new ParkingWaiters();
+
+    private final QueueMetrics metrics = new QueueMetrics(this);
+
+    /**
+     * @param capacity the requested capacity.
+     * @param minimum the minimum capacity the subclass needs.
+     */
+    RingQueue(int capacity, int minimum) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("invalid capacity: "
+                    + capacity);
+        }
+        int size = minimum;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Stores the object at the tail, if the queue is not full.
+     * @return <code>false</code> if the queue is full.
+     */
+    abstract boolean put(Object o);
+
+    /**
+     * Takes the object at the head, if the queue is not empty.
+     * @return the object, or {@link #EMPTY} if the queue is empty.
+     */
+    abstract Object take();
+
+    /**
+     * Stores up to <code>len</code> objects from <code>src</code>, starting
+     * at <code>off</code>, at the tail, as far as there is room. Returns 0
+     * right away if <code>len</code> is 0.
+     * @return the number of objects stored.
+     */
+    abstract int putBatch(Object[] src, int off, int len);
+
+    /**
+     * Takes up to <code>len</code> objects from the head, and stores them in
+     * <code>dst</code>, starting at <code>off</code>. Returns 0 right away
+     * if <code>len</code> is 0.
+     * @return the number of objects taken.
+     */
+    abstract int takeBatch(Object[] dst, int off, int len);
+
+    public boolean offer(Object o) {
+        if (!put(o)) {
+            metrics.rejected();
+            return false;
+        }
+        metrics.wokeUp(notEmpty.signal(1));
+        return true;
+    }
+
+    /**
+     * Enqueues the specified object. If the queue is full, it waits until
+     * there is room. If there are threads waiting for an object, a single
+     * one is woken up.
+     *
+     * An interrupt does not end the wait, but the interrupt status of the
+     * thread is kept.
+     *
+     * @param o the object to be enqueued.
+     */
+    public void enqueue(Object o) {
+        if (!put(o)) {
+            waitAndPut(new Object[] { o }, 0, 1, 0, false, false);
+        }
+        metrics.wokeUp(notEmpty.signal(1));
+    }
+
+    public boolean enqueue(Object o, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (!put(o)) {
+            int n = 0;
+            if (timeout > 0) {
+                n = waitAndPut(new Object[] { o }, 0, 1,
+                        unit.toNanos(timeout), true, true);
+                if (n < 0) {
+                    throw new InterruptedException();
+                }
+            }
+            if (n == 0) {
+                metrics.rejected();
+                return false;
+            }
+        }
+        metrics.wokeUp(notEmpty.signal(1));
+        return true;
+    }
+
+    public void enqueueAll(Collection<?> objects) {
+        Object[] src = objects.toArray();
+        int off = 0;
+
+        while (off < src.length) {
+            int n = putBatch(src, off, src.length - off);
+            if (n == 0) {
+                n = waitAndPut(src, off, src.length - off, 0, false, false);
+            }
+            off += n;
+            metrics.wokeUp(notEmpty.signal(n));
+        }
+    }
+
+    public Object dequeue() {
+        return dequeue(0L);
+    }
+
+    /**
+     * Dequeues the head of the queue. If the queue is empty it
+     * will wait until something is added to the queue, or the deadline
+     * has passed.
+     *
+     * An interrupt does not end the wait, just like it does not for
+     * {@link Queue}, but the interrupt status of the thread is kept.
+     *
+     * @param deadline the deadline expressed in milliseconds
+     *		   since 1-1-1970. a value of "0" will cause this
+     *		   function to wait forever, on -1 it will not wait
+     *		   at all.
+     *
+     * @return the dequeued object, or null if the deadline passed
+     */
+    public Object dequeue(long deadline) {
+        Object result = take();
+        if (result == EMPTY && deadline != -1) {
+            result = waitAndTake(toNanos(deadline), deadline != 0, false);
+        }
+        if (result == EMPTY) {
+            return null;
+        }
+        metrics.wokeUp(notFull.signal(1));
+        return result;
+    }
+
+    public Object dequeue(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        Object result = take();
+        if (result == EMPTY && timeout > 0) {
+            result = waitAndTake(unit.toNanos(timeout), true, true);
+            if (result == INTERRUPTED) {
+                throw new InterruptedException();
+            }
+        }
+        if (result == EMPTY) {
+            return null;
+        }
+        metrics.wokeUp(notFull.signal(1));
+        return result;
+    }
+
+    public int dequeueBatch(Object[] dst, long deadline) {
+        if (dst.length == 0) {
+            return 0;
+        }
+        int n = takeBatch(dst, 0, dst.length);
+        if (n == 0 && deadline != -1) {
+            Object first = waitAndTake(toNanos(deadline), deadline != 0,
+                    false);
+            if (first == EMPTY) {
+                return 0;
+            }
+            dst[0] = first;
+            n = 1;
+            if (dst.length > 1) {
+                n += takeBatch(dst, 1, dst.length - 1);
+            }
+        }
+        if (n > 0) {
+            metrics.wokeUp(notFull.signal(n));
+        }
+        return n;
+    }
+
+    public int dequeueBatch(Object[] dst, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (dst.length == 0) {
+            return 0;
+        }
+        int n = takeBatch(dst, 0, dst.length);
+        if (n == 0 && timeout > 0) {
+            Object first = waitAndTake(unit.toNanos(timeout), true, true);
+            if (first == INTERRUPTED) {
+                throw new InterruptedException();
+            }
+            if (first == EMPTY) {
+                return 0;
+            }
+            dst[0] = first;
+            n = 1;
+            if (dst.length > 1) {
+                n += takeBatch(dst, 1, dst.length - 1);
+            }
+        }
+        if (n > 0) {
+            metrics.wokeUp(notFull.signal(n));
+        }
+        return n;
+    }
+
+    public int drainTo(Collection<Object> c, int max) {
+        if (max <= 0) {
+            return 0;
+        }
+        Object[] chunk = new Object[Math.min(max, DRAIN_CHUNK)];
+        int total = 0;
+        while (total < max) {
+            int n = takeBatch(chunk, 0, Math.min(chunk.length, max - total));
+            if (n == 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                c.add(chunk[i]);
+                chunk[i] = null;
+            }
+            total += n;
+        }
+        if (total > 0) {
+            metrics.wokeUp(notFull.signal(total));
+        }
+        return total;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the number of elements between the specified head and tail
+     * positions, which may have been read at different times.
+     */
+    int size(long head, long tail) {
+        long size = tail - head;
+        if (size < 0) {
+            return 0;
+        }
+        return size > buffer.length ? buffer.length : (int) size;
+    }
+
+    /**
+     * Converts a wall-clock deadline, as used by {@link #dequeue(long)}, to
+     * a timeout in nanoseconds.
+     */
+    private static long toNanos(long deadline) {
+        return (deadline - System.currentTimeMillis()) * 1000000L;
+    }
+
+    /**
+     * Waits for room and stores objects. The timeout is measured with
+     * {@link System#nanoTime()}.
+     * @param timeout the timeout in nanoseconds, if <code>timed</code>.
+     * @param timed whether to wait with a timeout.
+     * @param interruptible whether an interrupt ends the wait. If not, the
+     *     interrupt status is kept for the caller.
+     * @return the number of objects stored, 0 if the timeout expired, or
+     *     -1 if the wait was interrupted.
+     */
+    private int waitAndPut(Object[] src, int off, int len, long timeout,
+            boolean timed, boolean interruptible) {
+        long start = System.nanoTime();
+        long end = start + timeout;
+        boolean interrupted = false;
+        int n;
+
+        for (int i = 0; i < SPINS + YIELDS; i++) {
+            if (i >= SPINS) {
+                Thread.yield();
+            }
+            if ((n = putBatch(src, off, len)) > 0) {
+                metrics.spinWaited();
+                metrics.producerWaited(System.nanoTime() - start);
+                return n;
+            }
+            if (timed && end - System.nanoTime() <= 0) {
+                metrics.producerWaited(System.nanoTime() - start);
+                return 0;
+            }
+        }
+
+        while ((n = putBatch(src, off, len)) == 0) {
+            long nanos = 0;
+            if (timed) {
+                nanos = end - System.nanoTime();
+                if (nanos <= 0) {
+                    break;
+                }
+            }
+            notFull.register();
+            n = putBatch(src, off, len);
+            if (n == 0) {
+                notFull.park(nanos);
+            }
+            notFull.deregister(n > 0);
+            if (n > 0) {
+                break;
+            }
+            if (Thread.interrupted()) {
+                if (interruptible) {
+                    // A signal for this thread may have come with the
+                    // interrupt; leave it to another waiter.
+                    notFull.signal();
+                    n = -1;
+                    break;
+                }
+                interrupted = true;
+            }
+        }
+        metrics.producerWaited(System.nanoTime() - start);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return n;
+    }
+
+    /**
+     * Waits for an object and takes it. The timeout is measured with
+     * {@link System#nanoTime()}, so changes of the wall clock during the
+     * wait do not matter.
+     * @param timeout the timeout in nanoseconds, if <code>timed</code>.
+     * @param timed whether to wait with a timeout.
+     * @param interruptible whether an interrupt ends the wait. If not, the
+     *     interrupt status is kept for the caller.
+     * @return the object, {@link #EMPTY} if the timeout expired, or
+     *     {@link #INTERRUPTED}.
+     */
+    private Object waitAndTake(long timeout, boolean timed,
+            boolean interruptible) {
+        Object result;
+        boolean interrupted = false;
+        long end = System.nanoTime() + timeout;
+
+        metrics.consumerWaited();
+        for (int i = 0; i < SPINS + YIELDS; i++) {
+            if (i >= SPINS) {
+                Thread.yield();
+            }
+            if ((result = take()) != EMPTY) {
+                metrics.spinWaited();
+                return result;
+            }
+            if (timed && end - System.nanoTime() <= 0) {
+                return EMPTY;
+            }
+        }
+
+        while ((result = take()) == EMPTY) {
+            long nanos = 0;
+            if (timed) {
+                nanos = end - System.nanoTime();
+                if (nanos <= 0) {
+                    break;
+                }
+            }
+            notEmpty.register();
+            result = take();
+            if (result == EMPTY) {
+                notEmpty.park(nanos);
+            }
+            notEmpty.deregister(result != EMPTY);
+            if (result != EMPTY) {
+                break;
+            }
+            if (Thread.interrupted()) {
+                if (interruptible) {
+                    // A signal for this thread may have come with the
+                    // interrupt; leave it to another waiter.
+                    notEmpty.signal();
+                    return INTERRUPTED;
+                }
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,117 @@
+/* $Id$ */
+
+package ibis.util;
+
+/**
+ * A bounded, lock-free queue for a single producer thread and a single
+ * consumer thread, for instance a receive thread that hands messages to a
+ * handler thread. It has the same {@link #enqueue(Object)} and
+ * {@link #dequeue(long)} semantics as {@link Queue}, except that
+ * {@link #enqueue(Object)} waits when the queue is full.
+ *
+ * The producer only writes the tail, and the consumer only writes the head,
+ * so neither needs a compare-and-set. Each side also keeps a private copy
+ * of the other side's counter, and only reads the real one when the copy
+ * says the queue is full or empty. The queue is not safe for use by more
+ * than one producer or more than one consumer at a time; see
+ * {@link MPSCQueue} and {@link MPMCQueue} for that.
+ */
+public final class SPSCQueue extends RingQueue {
+
+    private final PaddedCounter head = new PaddedCounter();
+
+    private final PaddedCounter tail = new PaddedCounter();
+
+    // The head as last seen by the producer, and the tail as last seen by
+    // the consumer. They are written by different threads, so they are
+    // kept apart in an array, with 7 longs on either side of each.
+    private static final int HEAD_CACHE = 7;
+
+    private static final int TAIL_CACHE = 2 * HEAD_CACHE + 1;
+
+    private final long[] cache = new long[TAIL_CACHE + HEAD_CACHE + 1];
+
+    /**
+     * Constructs a new queue.
+     * @param capacity the maximum number of elements in the queue. It is
+     *     rounded up to a power of two.
+     */
+    public SPSCQueue(int capacity) {
+        super(capacity, 1);
+    }
+
+    /**
+     * Returns the length of the queue. When other threads are using the
+     * queue, this is only an estimate.
+     * @return the length of the queue.
+     */
+    public int size() {
+        return size(head.get(), tail.get());
+    }
+
+    boolean put(Object o) {
+        long pos = tail.get();
+        if (pos - cache[HEAD_CACHE] > mask) {
+            cache[HEAD_CACHE] = head.get();
+            if (pos - cache[HEAD_CACHE] > mask) {
+                return false;
+            }
+        }
+        buffer[(int) pos & mask] = o;
+        // Publishes the object to the consumer.
+        tail.set(pos + 1);
+        return true;
+    }
+
+    int putBatch(Object[] src, int off, int len) {
+        long pos = tail.get();
+        long free = buffer.length - (pos - cache[HEAD_CACHE]);
+        if (free < len) {
+            cache[HEAD_CACHE] = head.get();
+            free = buffer.length - (pos - cache[HEAD_CACHE]);
+        }
+        int n = (int) Math.min(free, len);
+        for (int i = 0; i < n; i++) {
+            buffer[(int) (pos + i) & mask] = src[off + i];
+        }
+        if (n > 0) {
+            tail.set(pos + n);
+        }
+        return n;
+    }
+
+    Object take() {
+        long pos = head.get();
+        if (pos >= cache[TAIL_CACHE]) {
+            cache[TAIL_CACHE] = tail.get();
+            if (pos >= cache[TAIL_CACHE]) {
+                return EMPTY;
+            }
+        }
+        int index = (int) pos & mask;
+        Object result = buffer[index];
+        buffer[index] = null;
+        // Hands the slot back to the producer.
+        head.set(pos + 1);
+        return result;
+    }
+
+    int takeBatch(Object[] dst, int off, int len) {
+        long pos = head.get();
+        long available = cache[TAIL_CACHE] - pos;
+        if (available < len) {
+            cache[TAIL_CACHE] = tail.get();
+            available = cache[TAIL_CACHE] - pos;
+        }
+        int n = (int) Math.min(available, len);
+        for (int i = 0; i < n; i++) {
+            int index = (int) (pos + i) & mask;
+            dst[off + i] = buffer[index];
+            buffer[index] = null;
+        }
+        if (n > 0) {
+            head.set(pos + n);
+        }
+        return n;
+    }
+}
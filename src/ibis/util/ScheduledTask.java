@@ -0,0 +1,65 @@
+/* $Id$ */
+
+package ibis.util;
+
+/**
+ * A task that has been scheduled for delayed or periodic execution with
+ * {@link ThreadPool#schedule(Runnable, String, long)} or
+ * {@link ThreadPool#schedule(Runnable, String, long, long)}. It can be used
+ * to cancel the task.
+ */
+public final class ScheduledTask {
+
+    final TimingWheel wheel;
+
+    final Runnable runnable;
+
+    final String name;
+
+    /** The period in ticks, or 0 for a task that runs only once. */
+    final long period;
+
+    /** The tick at which the task must run. Guarded by the wheel. */
+    long deadline;
+
+    /** Position in the wheel, or -1 if not in the wheel. */
+    int level = -1;
+
+    int slot;
+
+    // links in the slot list of the wheel
+    ScheduledTask prev;
+
+    ScheduledTask next;
+
+    /** Link in the list of expired tasks that are about to be run. */
+    ScheduledTask nextExpired;
+
+    volatile boolean cancelled = false;
+
+    ScheduledTask(TimingWheel wheel, Runnable runnable, String name,
+            long deadline, long period) {
+        this.wheel = wheel;
+        this.runnable = runnable;
+        this.name = name;
+        this.deadline = deadline;
+        this.period = period;
+    }
+
+    /**
+     * Cancels this task. A periodic task will not run again. A run of which
+     * the time has already come still takes place.
+     * @return <code>true</code> if the task was waiting for its next run.
+     */
+    public boolean cancel() {
+        return wheel.cancel(this);
+    }
+
+    /**
+     * Returns whether this task has been cancelled.
+     * @return <code>true</code> if this task was cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
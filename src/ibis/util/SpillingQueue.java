@@ -0,0 +1,754 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An unbounded queue, like {@link Queue}, that keeps at most a given number
+ * of objects in memory, and spills the rest to disk. Once the number of
+ * objects in memory reaches the watermark, further objects are serialized
+ * into memory-mapped segment files, and they are read back from there in
+ * FIFO order. This keeps the memory use of the queue bounded when its
+ * consumers are away for a long time. The objects must be
+ * {@link java.io.Serializable}. When a spilled object cannot be
+ * deserialized, taking it throws a {@link RuntimeException}, and the object
+ * is dropped from the queue. A batch that already took other objects
+ * returns those, and leaves the exception for the next take.
+ *
+ * A segment file that has been read completely is recycled for new
+ * objects; a few are kept around, and the others are deleted. The queue
+ * can be recovered after a restart: a new queue on the same directory
+ * continues with the objects that were left in the segment files. Objects
+ * that are in memory are only written to disk by {@link #close()}, so for
+ * a crash, only the spilled objects survive. The segment files are written
+ * through memory mapping, so they survive a crash of the JVM, but only
+ * survive a crash of the machine after {@link #sync()} or
+ * {@link #close()}.
+ *
+ * Like {@link Queue}, this queue waits on its monitor.
+ */
+public class SpillingQueue implements ObjectQueue {
+
+    static final Logger logger = Logger.getLogger(SpillingQueue.class);
+
+    /** Default size of a segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final String PREFIX = "segment-";
+
+    private static final String SUFFIX = ".dat";
+
+    /** Number of read segments that are kept for recycling. */
+    private static final int MAX_FREE = 2;
+
+    // Segment header: magic, read position, sequence number.
+    private static final int MAGIC = 0x53504c51;
+
+    private static final int READ_POS = 4;
+
+    private static final int SEQUENCE = 8;
+
+    private static final int HEADER = 16;
+
+    /** Sequence number of a segment that is free. */
+    private static final long FREE = Long.MIN_VALUE;
+
+    /** A memory-mapped segment file. */
+    private static final class Segment {
+        final File file;
+
+        final RandomAccessFile raf;
+
+        final MappedByteBuffer buf;
+
+        long sequence;
+
+        int readPos;
+
+        int writePos;
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            if (size > 0) {
+                raf.setLength(size);
+            }
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    raf.length());
+        }
+
+        int capacity() {
+            return buf.capacity();
+        }
+
+        /** Starts using the segment, with the specified sequence number. */
+        void reset(long sequence) {
+            buf.putInt(0, MAGIC);
+            setSequence(sequence);
+            readPos = HEADER;
+            writePos = HEADER;
+            buf.putInt(READ_POS, readPos);
+            buf.putInt(HEADER, 0);
+        }
+
+        void setSequence(long sequence) {
+            this.sequence = sequence;
+            buf.putLong(SEQUENCE, sequence);
+        }
+
+        boolean fits(int length) {
+            return writePos + 4 + length <= buf.capacity();
+        }
+
+        void write(byte[] b) {
+            int pos = writePos;
+            buf.position(pos + 4);
+            buf.put(b);
+            // Mark the end before the record itself, so that a crash
+            // in between does not leave garbage behind the record.
+            int end = pos + 4 + b.length;
+            if (end + 4 <= buf.capacity()) {
+                buf.putInt(end, 0);
+            }
+            buf.putInt(pos, b.length);
+            writePos = end;
+        }
+
+        boolean isEmpty() {
+            return readPos == writePos;
+        }
+
+        byte[] read() {
+            int length = buf.getInt(readPos);
+            byte[] b = new byte[length];
+            buf.position(readPos + 4);
+            buf.get(b);
+            readPos += 4 + length;
+            buf.putInt(READ_POS, readPos);
+            return b;
+        }
+
+        /**
+         * Recovers the positions from the segment file.
+         * @return the number of unread records, or -1 if the segment is
+         *     free or not valid.
+         */
+        int recover() {
+            if (buf.capacity() < HEADER || buf.getInt(0) != MAGIC) {
+                return -1;
+            }
+            sequence = buf.getLong(SEQUENCE);
+            if (sequence == FREE) {
+                return -1;
+            }
+            int read = buf.getInt(READ_POS);
+            int count = 0;
+            int pos = HEADER;
+            readPos = -1;
+            while (true) {
+                if (pos == read) {
+                    readPos = pos;
+                    count = 0;
+                }
+                if (pos + 4 > buf.capacity()) {
+                    break;
+                }
+                int length = buf.getInt(pos);
+                if (length <= 0 || pos + 4 + length > buf.capacity()) {
+                    break;
+                }
+                pos += 4 + length;
+                count++;
+            }
+            writePos = pos;
+            if (readPos < 0) {
+                logger.warn("invalid read position in " + file
+                        + ", rereading it from the start");
+                readPos = HEADER;
+                buf.putInt(READ_POS, readPos);
+            }
+            return count;
+        }
+
+        void force() {
+            buf.force();
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.warn("could not close " + file, e);
+            }
+        }
+    }
+
+    private final File dir;
+
+    private final int watermark;
+
+    private final int segmentSize;
+
+    /** The objects in memory, which are all older than the spilled ones. */
+    private final LinkedList<Object> memory = new LinkedList<Object>();
+
+    /** The segments in use, oldest first. The last one is written. */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+    private final ArrayList<Segment> free = new ArrayList<Segment>();
+
+    private int spilled = 0;
+
+    /**
+     * The failure to deserialize the head of the queue, if a batch already
+     * took objects before it. It is thrown by the next take.
+     */
+    private RuntimeException failure = null;
+
+    private long nextSequence = 0;
+
+    private int nextFile = 0;
+
+    private int consumersWaiting = 0;
+
+    private boolean closed = false;
+
+    private final QueueMetrics metrics = new QueueMetrics(this);
+
+    /**
+     * Constructs a new queue, with segment files of the default size.
+     * @param dir the directory for the segment files. It is created if it
+     *     does not exist; if it has segment files of an earlier queue,
+     *     their objects are recovered.
+     * @param watermark the maximum number of objects in memory.
+     * @exception IOException is thrown when the segment files cannot be
+     *     created or recovered.
+     */
+    public SpillingQueue(File dir, int watermark) throws IOException {
+        this(dir, watermark, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructs a new queue.
+     * @param dir the directory for the segment files. It is created if it
+     *     does not exist; if it has segment files of an earlier queue,
+     *     their objects are recovered.
+     * @param watermark the maximum number of objects in memory.
+     * @param segmentSize the size of a segment file in bytes. An object
+     *     that does not fit in a segment of this size gets a larger one.
+     * @exception IOException is thrown when the segment files cannot be
+     *     created or recovered.
+     */
+    public SpillingQueue(File dir, int watermark, int segmentSize)
+            throws IOException {
+        if (watermark < 0) {
+            throw new IllegalArgumentException("invalid watermark: "
+                    + watermark);
+        }
+        if (segmentSize <= HEADER) {
+            throw new IllegalArgumentException("invalid segment size: "
+                    + segmentSize);
+        }
+        this.dir = dir;
+        this.watermark = watermark;
+        this.segmentSize = segmentSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create directory " + dir);
+        }
+        recover();
+    }
+
+    /**
+     * Opens the segment files in the directory, and continues with the
+     * objects that were left in them.
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("could not list directory " + dir);
+        }
+        ArrayList<Segment> used = new ArrayList<Segment>();
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                int n = Integer.parseInt(name.substring(PREFIX.length(),
+                        name.length() - SUFFIX.length()));
+                nextFile = Math.max(nextFile, n + 1);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment s = new Segment(f, 0);
+            int count = s.recover();
+            if (count <= 0) {
+                recycle(s);
+            } else {
+                spilled += count;
+                used.add(s);
+            }
+        }
+        Collections.sort(used, new Comparator<Segment>() {
+            public int compare(Segment a, Segment b) {
+                return a.sequence < b.sequence ? -1
+                        : a.sequence == b.sequence ? 0 : 1;
+            }
+        });
+        segments.addAll(used);
+        if (!used.isEmpty()) {
+            nextSequence = used.get(used.size() - 1).sequence + 1;
+            if (logger.isInfoEnabled()) {
+                logger.info("recovered " + spilled + " objects from "
+                        + used.size() + " segments in " + dir);
+            }
+        }
+    }
+
+    public synchronized void enqueue(Object o) {
+        add(o);
+        signal(1);
+    }
+
+    /**
+     * Enqueues the specified object. This queue is never full, so this
+     * always succeeds.
+     * @param o the object to be enqueued.
+     * @return <code>true</code>.
+     */
+    public synchronized boolean offer(Object o) {
+        add(o);
+        signal(1);
+        return true;
+    }
+
+    /**
+     * Enqueues the specified object. This queue is never full, so this
+     * never waits.
+     * @param o the object to be enqueued.
+     * @param timeout ignored.
+     * @param unit ignored.
+     * @return <code>true</code>.
+     */
+    public synchronized boolean enqueue(Object o, long timeout,
+            TimeUnit unit) {
+        add(o);
+        signal(1);
+        return true;
+    }
+
+    public synchronized void enqueueAll(Collection<?> objects) {
+        int n = 0;
+        try {
+            for (Object o : objects) {
+                add(o);
+                n++;
+            }
+        } finally {
+            // Also wake up consumers for the objects that were added before
+            // one failed.
+            signal(n);
+        }
+    }
+
+    public synchronized Object dequeue() {
+        return dequeue(0L);
+    }
+
+    public synchronized Object dequeue(long deadline) {
+        if (!await(deadline)) {
+            return null;
+        }
+        return take();
+    }
+
+    public synchronized Object dequeue(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (!awaitNanos(unit.toNanos(timeout))) {
+            return null;
+        }
+        return take();
+    }
+
+    public synchronized int dequeueBatch(Object[] dst, long deadline) {
+        if (dst.length == 0 || !await(deadline)) {
+            return 0;
+        }
+        return take(dst);
+    }
+
+    public synchronized int dequeueBatch(Object[] dst, long timeout,
+            TimeUnit unit) throws InterruptedException {
+        if (dst.length == 0 || !awaitNanos(unit.toNanos(timeout))) {
+            return 0;
+        }
+        return take(dst);
+    }
+
+    public synchronized int drainTo(Collection<Object> c, int max) {
+        checkOpen();
+        int n = 0;
+        try {
+            for (; n < max && size() > 0; n++) {
+                c.add(take());
+            }
+        } catch (RuntimeException e) {
+            keepFailure(e, n);
+        }
+        return n;
+    }
+
+    public synchronized int size() {
+        return memory.size() + spilled + (failure != null ? 1 : 0);
+    }
+
+    /**
+     * Returns the number of objects that are spilled to disk.
+     * @return the number of spilled objects.
+     */
+    public synchronized int spilled() {
+        return spilled;
+    }
+
+    /**
+     * Returns {@link Integer#MAX_VALUE}: the queue is bounded by the disk
+     * space only.
+     * @return {@link Integer#MAX_VALUE}.
+     */
+    public int capacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Forces the segment files to disk.
+     */
+    public synchronized void sync() {
+        checkOpen();
+        for (Segment s : segments) {
+            s.force();
+        }
+    }
+
+    /**
+     * Writes the objects that are in memory to disk, in front of the
+     * spilled ones, forces the segment files to disk, and closes them. A
+     * new queue on the same directory continues where this one stopped.
+     * Threads that are waiting for an object get an
+     * {@link IllegalStateException}, as do further calls.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        if (!memory.isEmpty()) {
+            // Write the objects to new segments, and number them so that
+            // they come before the spilled ones.
+            ArrayList<Segment> front = new ArrayList<Segment>();
+            Segment s = null;
+            for (Object o : memory) {
+                byte[] b = serialize(o);
+                if (s == null || !s.fits(b.length)) {
+                    s = newSegment(b.length);
+                    front.add(s);
+                }
+                s.write(b);
+            }
+            long first = segments.isEmpty() ? nextSequence
+                    : segments.peekFirst().sequence;
+            for (int i = 0; i < front.size(); i++) {
+                front.get(i).setSequence(first - front.size() + i);
+            }
+            for (int i = front.size() - 1; i >= 0; i--) {
+                segments.addFirst(front.get(i));
+            }
+            spilled += memory.size();
+            memory.clear();
+        }
+        for (Segment s : segments) {
+            s.force();
+            s.close();
+        }
+        for (Segment s : free) {
+            s.close();
+        }
+        segments.clear();
+        free.clear();
+        closed = true;
+        if (logger.isDebugEnabled()) {
+            logger.debug("closed queue in " + dir + " with " + spilled
+                    + " objects on disk");
+        }
+        notifyAll();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("queue is closed");
+        }
+    }
+
+    /**
+     * Adds an object, to memory if it is below the watermark and nothing is
+     * spilled, or else to disk. Must be called with the lock held.
+     */
+    private void add(Object o) {
+        checkOpen();
+        if (spilled == 0 && memory.size() < watermark) {
+            memory.addLast(o);
+            return;
+        }
+        byte[] b = serialize(o);
+        Segment s = segments.peekLast();
+        if (s == null || !s.fits(b.length)) {
+            s = newSegment(b.length);
+            s.setSequence(nextSequence++);
+            segments.addLast(s);
+        }
+        s.write(b);
+        spilled++;
+    }
+
+    /**
+     * Takes the head of the non-empty queue. Must be called with the lock
+     * held.
+     */
+    private Object take() {
+        checkOpen();
+        if (failure != null) {
+            RuntimeException e = failure;
+            failure = null;
+            throw e;
+        }
+        if (!memory.isEmpty()) {
+            return memory.removeFirst();
+        }
+        Segment s = segments.peekFirst();
+        while (s.isEmpty()) {
+            segments.removeFirst();
+            recycle(s);
+            s = segments.peekFirst();
+        }
+        byte[] b = s.read();
+        spilled--;
+        if (s.isEmpty()) {
+            if (segments.size() > 1) {
+                segments.removeFirst();
+                recycle(s);
+            } else {
+                // The last segment; write it from the start again.
+                s.reset(s.sequence);
+            }
+        }
+        // The record is taken before it is deserialized, so that a record
+        // that cannot be deserialized is dropped, and does not leave the
+        // queue in an inconsistent state.
+        return deserialize(b);
+    }
+
+    private int take(Object[] dst) {
+        int n = 0;
+        try {
+            for (; n < dst.length && size() > 0; n++) {
+                dst[n] = take();
+            }
+        } catch (RuntimeException e) {
+            keepFailure(e, n);
+        }
+        return n;
+    }
+
+    /**
+     * Handles a failure to take an object in a batch, after <code>n</code>
+     * objects were taken. If there are none, the failure is thrown;
+     * otherwise, it is kept for the next take, so that the caller gets the
+     * objects that were taken already. Must be called with the lock held.
+     */
+    private void keepFailure(RuntimeException e, int n) {
+        if (n == 0) {
+            throw e;
+        }
+        failure = e;
+    }
+
+    /**
+     * Returns a segment with room for a record of the specified length,
+     * which is recycled if possible. It still has to get a sequence number.
+     */
+    private Segment newSegment(int length) {
+        int needed = HEADER + 4 + length + 4;
+        for (int i = free.size() - 1; i >= 0; i--) {
+            Segment s = free.get(i);
+            if (s.capacity() >= needed) {
+                free.remove(i);
+                s.reset(FREE);
+                return s;
+            }
+        }
+        File f = new File(dir, PREFIX + nextFile++ + SUFFIX);
+        try {
+            Segment s = new Segment(f, Math.max(segmentSize, needed));
+            s.reset(FREE);
+            return s;
+        } catch (IOException e) {
+            throw new RuntimeException("could not create segment " + f, e);
+        }
+    }
+
+    /**
+     * Marks a read segment as free, and keeps it for reuse, or deletes it.
+     */
+    private void recycle(Segment s) {
+        if (s.capacity() >= HEADER) {
+            s.buf.putInt(0, MAGIC);
+            s.setSequence(FREE);
+        }
+        if (free.size() < MAX_FREE && s.capacity() >= segmentSize) {
+            free.add(s);
+        } else {
+            s.close();
+            if (!s.file.delete()) {
+                logger.warn("could not delete " + s.file);
+            }
+        }
+    }
+
+    private static byte[] serialize(Object o) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bos);
+            out.writeObject(o);
+            out.close();
+        } catch (NotSerializableException e) {
+            throw new IllegalArgumentException("object is not serializable",
+                    e);
+        } catch (IOException e) {
+            throw new RuntimeException("could not serialize object", e);
+        }
+        return bos.toByteArray();
+    }
+
+    private static Object deserialize(byte[] b) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(b));
+            Object o = in.readObject();
+            in.close();
+            return o;
+        } catch (Exception e) {
+            throw new RuntimeException("could not deserialize object", e);
+        }
+    }
+
+    /**
+     * Wakes up consumers after <code>n</code> objects were added. Must be
+     * called with the lock held.
+     */
+    private void signal(int n) {
+        if (consumersWaiting > 0 && n > 0) {
+            if (n == 1) {
+                notify();
+                metrics.wokeUp(1);
+            } else {
+                notifyAll();
+                metrics.wokeUp(consumersWaiting);
+            }
+        }
+    }
+
+    /**
+     * Waits until the queue is not empty, or the deadline has passed, like
+     * {@link Queue} does: an interrupt does not end the wait, but the
+     * interrupt status of the thread is kept. Must be called with the lock
+     * held.
+     * @return <code>false</code> if the deadline passed.
+     */
+    private boolean await(long deadline) {
+        checkOpen();
+        if (size() > 0 || deadline == -1) {
+            return size() > 0;
+        }
+        long end = 0;
+        if (deadline != 0) {
+            end = System.nanoTime()
+                    + (deadline - System.currentTimeMillis()) * 1000000L;
+        }
+        boolean interrupted = false;
+        metrics.consumerWaited();
+        consumersWaiting++;
+        try {
+            while (size() == 0) {
+                try {
+                    if (deadline == 0) {
+                        wait();
+                    } else {
+                        long nanos = end - System.nanoTime();
+                        if (nanos <= 0) {
+                            return false;
+                        }
+                        wait(nanos / 1000000, (int) (nanos % 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                checkOpen();
+            }
+            return true;
+        } finally {
+            consumersWaiting--;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits until the queue is not empty, or the timeout has expired.
+     * Must be called with the lock held.
+     * @return <code>false</code> if the timeout expired.
+     */
+    private boolean awaitNanos(long nanos) throws InterruptedException {
+        checkOpen();
+        if (size() > 0 || nanos <= 0) {
+            return size() > 0;
+        }
+        long end = System.nanoTime() + nanos;
+        metrics.consumerWaited();
+        consumersWaiting++;
+        try {
+            while (size() == 0) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                wait(nanos / 1000000, (int) (nanos % 1000000));
+                checkOpen();
+                nanos = end - System.nanoTime();
+            }
+            return true;
+        } finally {
+            consumersWaiting--;
+        }
+    }
+}
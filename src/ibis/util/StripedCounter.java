@@ -0,0 +1,63 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that is updated often by many threads, and read rarely. Each
+ * thread adds to one of a number of cells, which have a cache line each, so
+ * that threads on different cores do not contend for the same cache line.
+ * Reading the counter adds up the cells.
+ */
+final class StripedCounter {
+
+    /** Distance between cells in longs: a 64-byte cache line. */
+    static final int STRIDE = 8;
+
+    /** Number of cells: a power of two, about twice the processors. */
+    static final int STRIPES;
+
+    static {
+        int n = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (n < 2 * cpus && n < 64) {
+            n <<= 1;
+        }
+        STRIPES = n;
+    }
+
+    // One cache line of padding before the first cell.
+    private final AtomicLongArray cells
+            = new AtomicLongArray((STRIPES + 1) * STRIDE);
+
+    /**
+     * Returns the stripe of the current thread, between 0 and
+     * {@link #STRIPES}. Consecutive thread ids end up in different
+     * stripes.
+     */
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+    }
+
+    void increment() {
+        cells.incrementAndGet((stripe() + 1) * STRIDE);
+    }
+
+    void add(long delta) {
+        cells.addAndGet((stripe() + 1) * STRIDE, delta);
+    }
+
+    /**
+     * Returns the sum of the cells. Updates that happen while the cells
+     * are added up may or may not be included.
+     */
+    long get() {
+        long sum = 0;
+        for (int i = 1; i <= STRIPES; i++) {
+            sum += cells.get(i * STRIDE);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,131 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decides what happens when a task run by a threadpool throws an exception.
+ * The policies are:
+ * <ul>
+ * <li>{@link #EXIT}: log the exception and exit the JVM. A thread died
+ *     unexpectedly, after all. This is the default.
+ * <li>{@link #LOG}: log the exception, and let the thread continue with
+ *     the next task.
+ * <li>{@link #REPLACE}: log the exception, and let the thread exit. The
+ *     pool creates a fresh thread in its place.
+ * </ul>
+ * Other behaviour can be obtained by overriding
+ * {@link #handle(String, Throwable)}. The handler counts failures, whatever
+ * the policy.
+ *
+ * The handler of the {@link ThreadPool} is set with the
+ * <code>ibis.util.threadpool.failure</code> property (<code>exit</code>,
+ * <code>log</code>, or <code>replace</code>), or with
+ * {@link ThreadPool#setFailureHandler(TaskFailureHandler)}. Other pools use
+ * that handler as well, unless they are given one of their own.
+ */
+public class TaskFailureHandler {
+
+    /** Policy: exit the JVM. */
+    public static final int EXIT = 0;
+
+    /** Policy: log the exception and continue. */
+    public static final int LOG = 1;
+
+    /** Policy: replace the thread that ran the task. */
+    public static final int REPLACE = 2;
+
+    static final Logger logger = Logger.getLogger(TaskFailureHandler.class);
+
+    private final int policy;
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong replaced = new AtomicLong();
+
+    /**
+     * Creates a handler with the specified policy.
+     * @param policy one of {@link #EXIT}, {@link #LOG}, or {@link #REPLACE}.
+     */
+    public TaskFailureHandler(int policy) {
+        if (policy < EXIT || policy > REPLACE) {
+            throw new IllegalArgumentException("invalid policy: " + policy);
+        }
+        this.policy = policy;
+    }
+
+    /**
+     * Handles the failure of a task, and returns the policy to apply.
+     * The default implementation logs the exception and returns the policy
+     * this handler was created with.
+     * @param name the name of the task.
+     * @param t the exception thrown by the task.
+     * @return one of {@link #EXIT}, {@link #LOG}, or {@link #REPLACE}.
+     */
+    protected int handle(String name, Throwable t) {
+        if (policy == EXIT) {
+            logger.fatal("caught exception in pool thread " + name, t);
+        } else {
+            logger.error("caught exception in pool thread " + name, t);
+        }
+        return policy;
+    }
+
+    /**
+     * Called by a pool thread when its task threw an exception.
+     * @return <code>true</code> if the thread must exit and be replaced.
+     */
+    final boolean taskFailed(String name, Throwable t) {
+        failures.incrementAndGet();
+
+        switch (handle(name, t)) {
+        case LOG:
+            return false;
+        case REPLACE:
+            replaced.incrementAndGet();
+            return true;
+        default:
+            // Throwing an exception here makes no sense: it will only
+            // kill the thread.
+            System.exit(1);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of failed tasks.
+     * @return the number of failures.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of threads replaced because of a failure.
+     * @return the number of replaced threads.
+     */
+    public long getReplacedThreads() {
+        return replaced.get();
+    }
+
+    /**
+     * Returns the handler for the specified policy name, as used in the
+     * <code>ibis.util.threadpool.failure</code> property.
+     */
+    static TaskFailureHandler forName(String name) {
+        if (name.equals("log")) {
+            return new TaskFailureHandler(LOG);
+        }
+        if (name.equals("replace")) {
+            return new TaskFailureHandler(REPLACE);
+        }
+        if (!name.equals("exit")) {
+            logger.warn("unknown failure policy \"" + name
+                    + "\", exiting on failures");
+        }
+        return new TaskFailureHandler(EXIT);
+    }
+}
@@ -0,0 +1,357 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The result of a task, which may not be available yet.
+ *
+ * A <code>TaskFuture</code> is either created with a {@link Callable}, and
+ * then is itself the {@link Runnable} that computes the result (see
+ * {@link ThreadPool#submit(Callable, String)}), or it is created without one
+ * and completed explicitly with {@link #complete(Object)} or
+ * {@link #fail(Throwable)}.
+ *
+ * Besides waiting for the result with {@link #get()}, a {@link Listener}
+ * can be registered that is called when the result becomes available, and
+ * continuations can be chained with {@link #then(Continuation)}. Neither
+ * blocks a thread while the result is outstanding. Listeners are called by
+ * the thread that completes the future (or by the registering thread, if
+ * the future is already complete), so they should not block; a listener
+ * that has real work to do should hand it to the {@link ThreadPool}.
+ * Listeners are called in the order in which they were registered. An
+ * exception thrown by a listener is logged, and does not keep the other
+ * listeners from being called.
+ *
+ * A future allocates nothing besides itself: a single listener is kept in
+ * a field, and a chained future is its own listener.
+ *
+ * @param <T> the type of the result.
+ */
+public class TaskFuture<T> implements Future<T>, Runnable {
+
+    static final Logger logger = Logger.getLogger(TaskFuture.class);
+
+    /**
+     * Called when a future is completed.
+     * @param <T> the type of the result.
+     */
+    public interface Listener<T> {
+        /**
+         * Called when the specified future is done.
+         * @param future the future, on which {@link TaskFuture#getNow()} can
+         *     be called without blocking.
+         */
+        void completed(TaskFuture<T> future);
+    }
+
+    /**
+     * Computes a new result from the result of a future.
+     * @param <T> the type of the result of the future.
+     * @param <U> the type of the new result.
+     */
+    public interface Continuation<T, U> {
+        /**
+         * Computes the new result.
+         * @param value the result of the future.
+         * @return the new result.
+         * @exception Exception may be thrown, and fails the new future.
+         */
+        U apply(T value) throws Exception;
+    }
+
+    private static final class Chained<T, U> extends TaskFuture<U>
+            implements Listener<T> {
+        private final Continuation<? super T, ? extends U> continuation;
+
+        Chained(Continuation<? super T, ? extends U> continuation) {
+            this.continuation = continuation;
+        }
+
+        public void completed(TaskFuture<T> future) {
+            if (future.state == CANCELLED) {
+                cancel(false);
+            } else if (future.state == FAILED) {
+                fail(future.failure);
+            } else {
+                U result;
+                try {
+                    result = continuation.apply(future.value);
+                } catch (Throwable t) {
+                    fail(t);
+                    return;
+                }
+                complete(result);
+            }
+        }
+    }
+
+    private static final class ListenerNode<T> {
+        final Listener<T> listener;
+
+        ListenerNode<T> next;
+
+        ListenerNode(Listener<T> listener) {
+            this.listener = listener;
+        }
+    }
+
+    private static final int PENDING = 0;
+
+    private static final int DONE = 1;
+
+    private static final int FAILED = 2;
+
+    private static final int CANCELLED = 3;
+
+    private final Callable<T> callable;
+
+    private volatile int state = PENDING;
+
+    private T value;
+
+    private Throwable failure;
+
+    // Guarded by this. The first listener is kept here, further ones in
+    // a chain of nodes, so the common single-listener case needs no node.
+    // New nodes are appended at the tail, to keep the registration order.
+    private Listener<T> listener;
+
+    private ListenerNode<T> moreListeners;
+
+    private ListenerNode<T> lastListener;
+
+    private int waiters = 0;
+
+    /**
+     * Creates a future that is completed explicitly, with
+     * {@link #complete(Object)} or {@link #fail(Throwable)}.
+     */
+    public TaskFuture() {
+        this(null);
+    }
+
+    /**
+     * Creates a future that is completed by running it.
+     * @param callable computes the result when {@link #run()} is called.
+     */
+    public TaskFuture(Callable<T> callable) {
+        this.callable = callable;
+    }
+
+    /**
+     * Computes the result with the {@link Callable} this future was created
+     * with, and completes this future with it. An exception thrown by the
+     * <code>Callable</code> fails this future.
+     */
+    public void run() {
+        if (state != PENDING || callable == null) {
+            return;
+        }
+        T result;
+        try {
+            result = callable.call();
+        } catch (Throwable t) {
+            fail(t);
+            return;
+        }
+        complete(result);
+    }
+
+    /**
+     * Completes this future with the specified result.
+     * @param result the result.
+     * @return <code>false</code> if this future was already done.
+     */
+    public boolean complete(T result) {
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            value = result;
+            state = DONE;
+        }
+        done();
+        return true;
+    }
+
+    /**
+     * Fails this future with the specified exception.
+     * @param exception the cause of the failure.
+     * @return <code>false</code> if this future was already done.
+     */
+    public boolean fail(Throwable exception) {
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            failure = exception;
+            state = FAILED;
+        }
+        done();
+        return true;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            state = CANCELLED;
+        }
+        done();
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    public boolean isDone() {
+        return state != PENDING;
+    }
+
+    /**
+     * Returns whether this future failed.
+     * @return <code>true</code> if this future failed.
+     */
+    public boolean isFailed() {
+        return state == FAILED;
+    }
+
+    /**
+     * Returns the result without waiting.
+     * @return the result.
+     * @exception IllegalStateException is thrown if this future is not done.
+     * @exception CancellationException is thrown if this future was
+     *     cancelled.
+     * @exception ExecutionException is thrown if this future failed.
+     */
+    public T getNow() throws ExecutionException {
+        switch (state) {
+        case DONE:
+            return value;
+        case FAILED:
+            throw new ExecutionException(failure);
+        case CANCELLED:
+            throw new CancellationException();
+        default:
+            throw new IllegalStateException("future is not done");
+        }
+    }
+
+    public synchronized T get() throws InterruptedException,
+            ExecutionException {
+        while (state == PENDING) {
+            waiters++;
+            try {
+                wait();
+            } finally {
+                waiters--;
+            }
+        }
+        return getNow();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (state == PENDING) {
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0) {
+                throw new TimeoutException();
+            }
+            waiters++;
+            try {
+                wait(nanos / 1000000, (int) (nanos % 1000000));
+            } finally {
+                waiters--;
+            }
+        }
+        return getNow();
+    }
+
+    /**
+     * Registers a listener, which is called when this future is done. If it
+     * is already done, the listener is called immediately.
+     * @param l the listener.
+     */
+    public void addListener(Listener<T> l) {
+        synchronized (this) {
+            if (state == PENDING) {
+                if (listener == null) {
+                    listener = l;
+                } else {
+                    ListenerNode<T> node = new ListenerNode<T>(l);
+                    if (lastListener == null) {
+                        moreListeners = node;
+                    } else {
+                        lastListener.next = node;
+                    }
+                    lastListener = node;
+                }
+                return;
+            }
+        }
+        call(l);
+    }
+
+    /**
+     * Returns a future for the result of applying the specified continuation
+     * to the result of this future. If this future fails or is cancelled, so
+     * is the returned future.
+     * @param continuation computes the new result.
+     * @param <U> the type of the new result.
+     * @return the future for the new result.
+     */
+    public <U> TaskFuture<U> then(
+            Continuation<? super T, ? extends U> continuation) {
+        Chained<T, U> result = new Chained<T, U>(continuation);
+        addListener(result);
+        return result;
+    }
+
+    private void done() {
+        Listener<T> first;
+        ListenerNode<T> more;
+
+        synchronized (this) {
+            if (waiters > 0) {
+                notifyAll();
+            }
+            first = listener;
+            more = moreListeners;
+            listener = null;
+            moreListeners = null;
+            lastListener = null;
+        }
+
+        if (first != null) {
+            call(first);
+        }
+        for (; more != null; more = more.next) {
+            call(more.listener);
+        }
+    }
+
+    /**
+     * Calls a listener. An exception it throws is logged, rather than
+     * passed on to the thread that completed this future, which may be a
+     * pool thread that would take it for a failure of its own task.
+     */
+    private void call(Listener<T> l) {
+        try {
+            l.completed(this);
+        } catch (Throwable t) {
+            logger.error("listener of a future failed", t);
+        }
+    }
+}
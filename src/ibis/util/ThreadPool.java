@@ -2,19 +2,163 @@
 
 package ibis.util;
 
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
 
 /**
  * Threadpool which uses timeouts to determine the number of threads.
  * There is no maximum number of threads in this pool, to prevent deadlocks.
+ * See {@link BoundedThreadPool} for a pool with a maximum number of threads.
+ *
+ * The threads that run the tasks are provided by a backend, selected with the
+ * <code>ibis.util.threadpool.backend</code> property:
+ * <ul>
+ * <li><code>pool</code> (the default): pooled platform threads, as described
+ *     above.
+ * <li><code>virtual</code>: a new virtual thread per task. Falls back to
+ *     <code>pool</code> if the JVM does not support virtual threads.
+ * <li><code>stealing</code>: a {@link WorkStealingThreadPool} with one
+ *     thread per processor. Tasks created from within a task are queued
+ *     locally to the creating thread.
+ * </ul>
+ *
+ * The pooled platform threads can be tuned with the following properties:
+ * <ul>
+ * <li><code>ibis.util.threadpool.timeout</code>: the time in milliseconds
+ *     an idle thread waits for work before it exits (default 30 seconds).
+ * <li><code>ibis.util.threadpool.minidle</code>: the number of idle
+ *     threads that is started in advance, and kept alive without work
+ *     (default 0).
+ * <li><code>ibis.util.threadpool.adaptive</code>: when set, the timeout is
+ *     extended to survive the observed gaps between bursts of work, so that
+ *     periodic load does not create a new set of threads for every burst.
+ * <li><code>ibis.util.threadpool.maxtimeout</code>: the upper bound of the
+ *     adaptive timeout in milliseconds (default 10 minutes).
+ * <li><code>ibis.util.threadpool.reserved</code>: the number of idle
+ *     threads that is reserved for priority tasks (default 0).
+ * </ul>
+ *
+ * Latency-critical tasks, such as control messages, can be submitted with
+ * {@link #createNew(Runnable, String, boolean)} with
+ * <code>priority = true</code>. This mirrors what
+ * {@link Monitor#lock(boolean)} offers for locking. Priority tasks are
+ * served ahead of normal tasks that are waiting for a thread; with pooled
+ * platform threads, which never make a task wait, normal tasks leave the
+ * reserved idle threads alone, so that a priority task finds a warm thread
+ * even during a flood of bulk work.
+ *
+ * Statistics are available through {@link #getMetrics()}, and through JMX
+ * when the <code>ibis.util.threadpool.jmx</code> property is set.
+ *
+ * What happens when a task throws an exception is decided by a
+ * {@link TaskFailureHandler}. By default, the JVM exits.
+ *
+ * Tasks can also be run by a named worker group, with
+ * {@link #createNew(Runnable, String, String)}, for instance to keep network
+ * handlers and computations on separate cores. Worker groups are
+ * {@link BoundedThreadPool}s, configured with the following properties:
+ * <ul>
+ * <li><code>ibis.util.threadpool.groups</code>: a comma-separated list of
+ *     group names.
+ * <li><code>ibis.util.threadpool.group.</code><i>name</i><code>.threads</code>:
+ *     the number of threads of the group (default: the number of
+ *     processors).
+ * <li><code>ibis.util.threadpool.group.</code><i>name</i><code>.queue</code>:
+ *     the number of tasks that may be queued before extra threads are
+ *     created (default 1024).
+ * <li><code>ibis.util.threadpool.group.</code><i>name</i><code>.cpus</code>:
+ *     the CPUs the threads of the group are pinned to, for instance
+ *     <code>0-3,8</code> (Linux only, default: not pinned).
+ * <li><code>ibis.util.threadpool.group.</code><i>name</i><code>.reserved</code>:
+ *     the number of threads of the group that only runs priority tasks
+ *     (default 0).
+ * </ul>
+ *
+ * Tasks can be scheduled to run after a delay, or periodically, with
+ * {@link #schedule(Runnable, String, long, long)}. The delays are kept in a
+ * timing wheel with a resolution of <code>ibis.util.threadpool.tick</code>
+ * milliseconds (default 10).
  *
  * @author Niels Drost.
  */
 public final class ThreadPool {
 
     static final Logger logger = Logger.getLogger(ThreadPool.class);
+
+    final private static String PROPERTY_PREFIX = "ibis.util.threadpool.";
+
+    final private static String backendProperty = PROPERTY_PREFIX + "backend";
+
+    final private static String timeoutProperty = PROPERTY_PREFIX + "timeout";
+
+    final private static String maxTimeoutProperty
+            = PROPERTY_PREFIX + "maxtimeout";
+
+    final private static String adaptiveProperty = PROPERTY_PREFIX + "adaptive";
+
+    final private static String minIdleProperty = PROPERTY_PREFIX + "minidle";
+
+    final private static String jmxProperty = PROPERTY_PREFIX + "jmx";
+
+    final private static String failureProperty = PROPERTY_PREFIX + "failure";
+
+    final private static String groupsProperty = PROPERTY_PREFIX + "groups";
+
+    final private static String tickProperty = PROPERTY_PREFIX + "tick";
+
+    final private static String reservedProperty = PROPERTY_PREFIX + "reserved";
+
+    final private static String groupPrefix = "group.";
+
+    final private static String[] props = { backendProperty, timeoutProperty,
+            maxTimeoutProperty, adaptiveProperty, minIdleProperty,
+            jmxProperty, failureProperty, groupsProperty, tickProperty,
+            reservedProperty };
+
+    final private static UtilProperties myprops = new UtilProperties(
+            System.getProperties(), PROPERTY_PREFIX, props,
+            new String[] { groupPrefix });
+
+    /** Time an idle thread waits for work before it exits. */
+    private static final long TIMEOUT
+            = myprops.getLongProperty(timeoutProperty, 30 * 1000);
+
+    /** Upper bound for the adaptive timeout. */
+    private static final long MAX_TIMEOUT
+            = myprops.getLongProperty(maxTimeoutProperty, 10 * 60 * 1000);
+
+    /** When set, the timeout follows the gaps between bursts of work. */
+    private static final boolean ADAPTIVE
+            = myprops.getBooleanProperty(adaptiveProperty);
+
+    /** Number of idle threads that is kept alive, even without work. */
+    private static final int MIN_IDLE
+            = myprops.getIntProperty(minIdleProperty, 0);
+
+    /** Number of idle threads that normal tasks leave to priority tasks. */
+    private static final int RESERVED
+            = myprops.getIntProperty(reservedProperty, 0);
+
+    /** Number of idle threads that does not exit. */
+    private static final int KEEP_IDLE = Math.max(MIN_IDLE, RESERVED);
+
+    /** Number of threads that are waiting for work. */
+    private static final AtomicInteger idleThreads = new AtomicInteger();
+
+    // if (ADAPTIVE). Races on these are harmless, it is just an estimate.
+    private static volatile long lastArrival = System.currentTimeMillis();
+
+    private static volatile long arrivalGap = 0;
+
+    private static volatile TaskFailureHandler failureHandler
+            = TaskFailureHandler.forName(myprops.getProperty(failureProperty,
+                    "exit"));
     
     private static final class PoolThread extends Thread {
 
@@ -25,33 +169,30 @@ public final class ThreadPool {
         private static final class ThreadPoolShutdown extends Thread {
             public void run() {
                 Logger logger = Logger.getLogger(ThreadPool.class);
-                logger.info("maximum number of simultaneous threads was: " + maxSimultaneousThreads);
+                logger.info("maximum number of simultaneous threads was: " + poolMetrics.getPeakThreads());
             }
         }
-        
-        private static final int TIMEOUT = 30 * 1000; //30 seconds 
 
         Runnable work = null;
 
         String name = null;
 
-        boolean expired = false;
+        long submitTime;
 
-        private static int nrOfThreads = 0;
+        boolean expired = false;
 
-        private static int maxSimultaneousThreads = 0;
-        
-        private static synchronized void newThread(String name) {
-            nrOfThreads++;
-            if(nrOfThreads > maxSimultaneousThreads) {
-                maxSimultaneousThreads = nrOfThreads;
+        private static void newThread(String name) {
+            int n = poolMetrics.threadCreated();
+            if (logger.isDebugEnabled()) {
+                logger.debug("New Thread \"" + name + "\" createded, number of threads now: "  + n);
             }
-            logger.debug("New Thread \"" + name + "\" createded, number of threads now: "  + nrOfThreads);
         }
 
-        private static synchronized void threadGone() {
-            nrOfThreads--;
-            logger.debug("Thread removed from pool. Now " + nrOfThreads + " threads");
+        private static void threadGone() {
+            int n = poolMetrics.threadExpired();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Thread removed from pool. Now " + n + " threads");
+            }
         }
 
         @SuppressWarnings("unused")
@@ -62,10 +203,9 @@ public final class ThreadPool {
         PoolThread(Runnable runnable, String name) {
             this.work = runnable;
             this.name = name;
+            this.submitTime = System.nanoTime();
 
-             if (logger.isInfoEnabled()) {
-                 newThread(name);
-             }
+            newThread(name);
         }
 
         private synchronized boolean issue(Runnable newWork, String newName) {
@@ -81,6 +221,8 @@ public final class ThreadPool {
 
             work = newWork;
             name = newName;
+            submitTime = System.nanoTime();
+            idleThreads.decrementAndGet();
             logger.debug("issue(): reusing thread");
             
             notifyAll();
@@ -91,54 +233,260 @@ public final class ThreadPool {
             while (true) {
                 Runnable currentWork;
                 String currentName;
+                long startTime;
 
                 synchronized (this) {
                     if (this.work == null) {
                         waiting(this);
-                        try {
-                            wait(TIMEOUT);
-                        } catch (InterruptedException e) {
-                            expired = true;
-                            if (logger.isInfoEnabled()) {
-                                threadGone();
+                        long idleSince = System.nanoTime();
+                        while (this.work == null) {
+                            //wait() may return early, without work; only
+                            //retire when the keep-alive time has passed
+                            long left = keepAlive()
+                                    - (System.nanoTime() - idleSince)
+                                    / 1000000;
+                            if (left <= 0) {
+                                if (retire()) {
+                                    //still no work, and not needed to keep
+                                    //the minimum number of idle threads,
+                                    //exit
+                                    expire();
+                                    return;
+                                }
+                                idleSince = System.nanoTime();
+                                continue;
+                            }
+                            try {
+                                wait(left);
+                            } catch (InterruptedException e) {
+                                idleThreads.decrementAndGet();
+                                expire();
+                                return;
                             }
-                            return;
-                        }
-                    }
-                    if (this.work == null) {
-                        //still no work, exit
-                        expired = true;
-                        if (logger.isInfoEnabled()) {
-                            threadGone();
                         }
-                        return;
                     }
                     currentWork = this.work;
                     currentName = this.name;
+                    startTime = poolMetrics.taskStarted(submitTime);
                 }
+                boolean replace = false;
                 try {
                     setName(currentName);
                     currentWork.run();
                 } catch (Throwable t) {
-                    logger.fatal("caught exception in pool thread " + currentName, t);
-                    // Exit, rather than continue. A thread died unexpectedly,
-                    // after all. If you dont want this, catch all throwables
-                    // yourself.
-                    // Throwing an exception here makes no sense: it will only
-                    // kill the thread.
-                    System.exit(1);
+                    replace = failureHandler.taskFailed(currentName, t);
                 }
+                poolMetrics.taskDone(startTime);
                 synchronized (this) {
                     this.work = null;
                     this.name = null;
                 }
+                if (replace) {
+                    //do not reuse this thread, a new one is created when
+                    //needed
+                    threadGone();
+                    return;
+                }
             }
         }
+
+        private void expire() {
+            expired = true;
+            threadGone();
+        }
+    }
+
+    /**
+     * Node in the stack of waiting PoolThreads. A fresh node is used for
+     * every push, so the stack does not suffer from the ABA problem.
+     */
+    private static final class IdleNode {
+        final PoolThread thread;
+
+        IdleNode next;
+
+        IdleNode(PoolThread thread) {
+            this.thread = thread;
+        }
     }
 
-    //list of waiting Poolthreads
-    private static final LinkedList<PoolThread> threadPool
-            = new LinkedList<PoolThread>();
+    //lock-free (Treiber) stack of waiting Poolthreads
+    private static final AtomicReference<IdleNode> threadPool
+            = new AtomicReference<IdleNode>();
+
+    /**
+     * The default backend: pooled platform threads.
+     */
+    private static final class PoolBackend implements ThreadPoolBackend {
+        PoolBackend() {
+            //pre-warm the minimum number of idle threads
+            for (int i = 0; i < KEEP_IDLE; i++) {
+                PoolThread poolThread = new PoolThread(null, "idle");
+                poolThread.setDaemon(true);
+                poolThread.start();
+            }
+        }
+
+        public void execute(Runnable runnable, String name) {
+            execute(runnable, name, false);
+        }
+
+        public void execute(Runnable runnable, String name,
+                boolean priority) {
+            PoolThread poolThread;
+            IdleNode top;
+
+            poolMetrics.submitted();
+            if (ADAPTIVE) {
+                arrived();
+            }
+
+            //normal tasks leave the reserved idle threads alone. The count
+            //is only an estimate, which is good enough here
+            while ((priority || idleThreads.get() > RESERVED)
+                    && (top = threadPool.get()) != null) {
+                if (!threadPool.compareAndSet(top, top.next)) {
+                    //lost a race with another createNew or a parking thread
+                    continue;
+                }
+                if (top.thread.issue(runnable, name)) {
+                    //issue of work succeeded, return
+                    return;
+                }
+                //this thread timed out, but others may still be waiting
+            }
+
+            //no usable thread found, create a new thread
+            poolThread = new PoolThread(runnable, name);
+            poolThread.setDaemon(true);
+            poolThread.start();
+        }
+
+        public void executeAll(Collection<? extends Runnable> runnables,
+                String name) {
+            Iterator<? extends Runnable> iterator = runnables.iterator();
+            int remaining = runnables.size();
+            Runnable current = null;
+
+            poolMetrics.submitted(remaining);
+            if (ADAPTIVE) {
+                arrived();
+            }
+
+            while (remaining > 0) {
+                //claim as many waiting threads as there are tasks left,
+                //with a single CAS
+                IdleNode top;
+                IdleNode rest;
+                int claim = Math.min(remaining,
+                        idleThreads.get() - RESERVED);
+                if (claim <= 0) {
+                    break;
+                }
+                do {
+                    top = threadPool.get();
+                    rest = top;
+                    for (int i = 0; rest != null && i < claim; i++) {
+                        rest = rest.next;
+                    }
+                } while (top != null && !threadPool.compareAndSet(top, rest));
+
+                if (top == null) {
+                    break;
+                }
+
+                for (IdleNode node = top; node != rest; node = node.next) {
+                    if (current == null) {
+                        current = iterator.next();
+                    }
+                    if (node.thread.issue(current, name)) {
+                        current = null;
+                        remaining--;
+                    }
+                }
+            }
+
+            //not enough usable threads found, create new ones
+            for (; remaining > 0; remaining--) {
+                if (current == null) {
+                    current = iterator.next();
+                }
+                PoolThread poolThread = new PoolThread(current, name);
+                poolThread.setDaemon(true);
+                poolThread.start();
+                current = null;
+            }
+        }
+
+        public ThreadPoolMetrics getMetrics() {
+            return poolMetrics;
+        }
+    }
+
+    private static final ThreadPoolMetrics poolMetrics
+            = new ThreadPoolMetrics();
+
+    private static final ThreadPoolBackend backend = createBackend();
+
+    static {
+        if (myprops.getBooleanProperty(jmxProperty)) {
+            backend.getMetrics().registerMBean("ThreadPool");
+        }
+    }
+
+    private static final HashMap<String, BoundedThreadPool> groups
+            = createGroups();
+
+    private static HashMap<String, BoundedThreadPool> createGroups() {
+        HashMap<String, BoundedThreadPool> result
+                = new HashMap<String, BoundedThreadPool>();
+
+        for (String group : myprops.getStringList(groupsProperty)) {
+            group = group.trim();
+            if (group.length() == 0) {
+                continue;
+            }
+            String prefix = PROPERTY_PREFIX + groupPrefix + group + ".";
+            int threads = myprops.getIntProperty(prefix + "threads",
+                    Runtime.getRuntime().availableProcessors());
+            int capacity = myprops.getIntProperty(prefix + "queue", 1024);
+
+            BoundedThreadPool pool = new BoundedThreadPool(group, threads,
+                    threads, capacity, BoundedThreadPool.OVERFLOW_SPAWN);
+            pool.setAffinity(myprops.getProperty(prefix + "cpus"));
+            pool.setReserved(myprops.getIntProperty(prefix + "reserved", 0));
+            result.put(group, pool);
+        }
+        return result;
+    }
+
+    /**
+     * Holds the timing wheel, so that its ticker thread is only started
+     * when a task is scheduled.
+     */
+    private static final class WheelHolder {
+        static final TimingWheel wheel = new TimingWheel(
+                myprops.getLongProperty(tickProperty, 10));
+    }
+
+    private static ThreadPoolBackend createBackend() {
+        String name = myprops.getProperty(backendProperty, "pool");
+
+        if (name.equals("virtual")) {
+            ThreadPoolBackend result = VirtualThreadBackend.create();
+            if (result != null) {
+                return result;
+            }
+            logger.warn("virtual threads are not supported by this JVM, "
+                    + "using pooled threads instead");
+        } else if (name.equals("stealing")) {
+            return new WorkStealingThreadPool("ThreadPool");
+        } else if (!name.equals("pool")) {
+            logger.warn("unknown threadpool backend \"" + name
+                    + "\", using pooled threads instead");
+        }
+        return new PoolBackend();
+    }
 
     /**
      * Prevent creation of a threadpool object.
@@ -147,8 +495,62 @@ public final class ThreadPool {
         //DO NOT USE
     }
 
-    private static synchronized void waiting(PoolThread thread) {
-        threadPool.add(thread);
+    /**
+     * Returns the time an idle thread waits for work before it exits.
+     */
+    private static long keepAlive() {
+        if (!ADAPTIVE) {
+            return TIMEOUT;
+        }
+        // Survive the typical gap between bursts of work.
+        long timeout = 2 * arrivalGap;
+        if (timeout < TIMEOUT) {
+            return TIMEOUT;
+        }
+        return timeout > MAX_TIMEOUT ? MAX_TIMEOUT : timeout;
+    }
+
+    /**
+     * Updates the estimate of the gap between bursts of work. Larger gaps
+     * are adopted immediately, smaller ones slowly. Gaps that are much
+     * smaller than the estimate are gaps within a burst, and are ignored.
+     */
+    private static void arrived() {
+        long now = System.currentTimeMillis();
+        long gap = now - lastArrival;
+        long estimate = arrivalGap;
+
+        lastArrival = now;
+        if (gap >= estimate) {
+            arrivalGap = gap;
+        } else if (gap >= estimate / 8) {
+            arrivalGap = estimate - estimate / 8 + gap / 8;
+        }
+    }
+
+    /**
+     * Lets an idle thread that has timed out decide whether to exit.
+     * @return <code>true</code> if the thread must exit.
+     */
+    private static boolean retire() {
+        int n;
+        do {
+            n = idleThreads.get();
+            if (n <= KEEP_IDLE) {
+                return false;
+            }
+        } while (!idleThreads.compareAndSet(n, n - 1));
+        return true;
+    }
+
+    private static void waiting(PoolThread thread) {
+        idleThreads.incrementAndGet();
+        IdleNode node = new IdleNode(thread);
+        IdleNode top;
+        do {
+            top = threadPool.get();
+            node.next = top;
+        } while (!threadPool.compareAndSet(top, node));
     }
 
     /**
@@ -160,27 +562,163 @@ public final class ThreadPool {
      * @param runnable the <code>Runnable</code> to be executed.
      * @param name set the thread name for the duration of this run
      */
-    public static synchronized void createNew(Runnable runnable, String name) {
-        PoolThread poolThread;
+    public static void createNew(Runnable runnable, String name) {
+        backend.execute(runnable, name);
+    }
 
-        if (!threadPool.isEmpty()) {
-            poolThread = (PoolThread) threadPool.removeLast();
-            if (poolThread.issue(runnable, name)) {
-                //issue of work succeeded, return
-                return;
-            }
-            //shortest waiting poolThread in list timed out, 
-            //assume all threads timed out
+    /**
+     * Associates a thread from the <code>ThreadPool</code> with the
+     * specified {@link Runnable}, like {@link #createNew(Runnable, String)}
+     * does. A priority task is served ahead of normal tasks, and may use
+     * the idle threads that are reserved for priority tasks.
+     *
+     * @param runnable the <code>Runnable</code> to be executed.
+     * @param name set the thread name for the duration of this run
+     * @param priority when <code>true</code>, the task has priority over
+     *     normal tasks.
+     */
+    public static void createNew(Runnable runnable, String name,
+            boolean priority) {
+        backend.execute(runnable, name, priority);
+    }
+
+    /**
+     * Runs the specified {@link Runnable} on a thread of the specified worker
+     * group. If there is no such group, this is the same as
+     * {@link #createNew(Runnable, String)}.
+     *
+     * @param runnable the <code>Runnable</code> to be executed.
+     * @param name set the thread name for the duration of this run
+     * @param group the name of the worker group.
+     */
+    public static void createNew(Runnable runnable, String name,
+            String group) {
+        createNew(runnable, name, group, false);
+    }
+
+    /**
+     * Runs the specified {@link Runnable} on a thread of the specified worker
+     * group, like {@link #createNew(Runnable, String, String)} does, with or
+     * without priority over the normal tasks of the group.
+     *
+     * @param runnable the <code>Runnable</code> to be executed.
+     * @param name set the thread name for the duration of this run
+     * @param group the name of the worker group.
+     * @param priority when <code>true</code>, the task has priority over
+     *     normal tasks.
+     */
+    public static void createNew(Runnable runnable, String name,
+            String group, boolean priority) {
+        BoundedThreadPool pool = groups.get(group);
+        if (pool == null) {
             if (logger.isDebugEnabled()) {
-                logger.debug("clearing thread pool of size "
-                        + threadPool.size());
+                logger.debug("no worker group " + group + ", using the pool");
             }
-            threadPool.clear();
+            backend.execute(runnable, name, priority);
+        } else {
+            pool.execute(runnable, name, priority);
+        }
+    }
+
+    /**
+     * Runs the specified {@link Runnable} on a thread from the
+     * <code>ThreadPool</code> after the specified delay.
+     *
+     * @param runnable the <code>Runnable</code> to be executed.
+     * @param name set the thread name for the duration of this run
+     * @param delay the delay in milliseconds.
+     * @return the scheduled task, which can be cancelled.
+     */
+    public static ScheduledTask schedule(Runnable runnable, String name,
+            long delay) {
+        return schedule(runnable, name, delay, 0);
+    }
+
+    /**
+     * Runs the specified {@link Runnable} on a thread from the
+     * <code>ThreadPool</code> periodically, after an initial delay.
+     * The runs start at a fixed rate; if a run takes longer than the
+     * period, the next run starts while it is still busy.
+     *
+     * @param runnable the <code>Runnable</code> to be executed.
+     * @param name set the thread name for the duration of each run
+     * @param delay the delay in milliseconds before the first run.
+     * @param period the time in milliseconds between the starts of
+     *     consecutive runs, or 0 to run only once.
+     * @return the scheduled task, which can be cancelled.
+     */
+    public static ScheduledTask schedule(Runnable runnable, String name,
+            long delay, long period) {
+        return WheelHolder.wheel.schedule(runnable, name, delay, period);
+    }
+
+    /**
+     * Returns the specified worker group.
+     * @param group the name of the worker group.
+     * @return the worker group, or <code>null</code> if there is no such
+     *     group.
+     */
+    public static BoundedThreadPool getGroup(String group) {
+        return groups.get(group);
+    }
+
+    /**
+     * Associates threads from the <code>ThreadPool</code> with each of the
+     * specified {@link Runnable}s, just like
+     * {@link #createNew(Runnable, String)} does, but with less overhead per
+     * task: waiting threads are claimed for several tasks at once.
+     *
+     * @param runnables the <code>Runnable</code>s to be executed.
+     * @param name set the thread name for the duration of each run
+     */
+    public static void createAll(Collection<? extends Runnable> runnables,
+            String name) {
+        backend.executeAll(runnables, name);
+    }
+
+    /**
+     * Computes a result on a thread from the <code>ThreadPool</code>.
+     * Instead of waiting for the result, the caller can register a listener
+     * or chain a continuation on the returned future. An exception thrown by
+     * the {@link Callable} fails the future, rather than the thread.
+     *
+     * @param callable computes the result.
+     * @param name set the thread name for the duration of this run
+     * @param <T> the type of the result.
+     * @return the future for the result.
+     */
+    public static <T> TaskFuture<T> submit(Callable<T> callable, String name) {
+        TaskFuture<T> future = new TaskFuture<T>(callable);
+        backend.execute(future, name);
+        return future;
+    }
+
+    /**
+     * Sets the handler that decides what happens when a task throws an
+     * exception.
+     * @param handler the new handler.
+     */
+    public static void setFailureHandler(TaskFailureHandler handler) {
+        if (handler == null) {
+            throw new NullPointerException("handler is null");
         }
+        failureHandler = handler;
+    }
 
-        //no usable thread found, create a new thread
-        poolThread = new PoolThread(runnable, name);
-        poolThread.setDaemon(true);
-        poolThread.start();
+    /**
+     * Returns the handler that decides what happens when a task throws an
+     * exception.
+     * @return the handler.
+     */
+    public static TaskFailureHandler getFailureHandler() {
+        return failureHandler;
+    }
+
+    /**
+     * Returns the statistics of the <code>ThreadPool</code>.
+     * @return the statistics.
+     */
+    public static ThreadPoolMetrics getMetrics() {
+        return backend.getMetrics();
     }
 }
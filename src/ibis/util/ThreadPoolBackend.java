@@ -0,0 +1,50 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.Collection;
+
+/**
+ * Executes the tasks handed to {@link ThreadPool#createNew(Runnable, String)}.
+ * The backend in use is selected with the
+ * <code>ibis.util.threadpool.backend</code> property.
+ */
+interface ThreadPoolBackend {
+
+    /**
+     * Executes the specified {@link Runnable} on some thread, with the thread
+     * name set to <code>name</code> for the duration of the run.
+     * Implementations must not wait for the completion of other tasks.
+     *
+     * @param runnable the <code>Runnable</code> to be executed.
+     * @param name set the thread name for the duration of this run
+     */
+    void execute(Runnable runnable, String name);
+
+    /**
+     * Executes the specified {@link Runnable}, like {@link #execute} does.
+     * A priority task is served ahead of normal tasks that are still
+     * waiting for a thread.
+     *
+     * @param runnable the <code>Runnable</code> to be executed.
+     * @param name set the thread name for the duration of this run
+     * @param priority when <code>true</code>, the task has priority over
+     *     normal tasks.
+     */
+    void execute(Runnable runnable, String name, boolean priority);
+
+    /**
+     * Executes the specified {@link Runnable}s, like {@link #execute} does,
+     * but with less overhead per task.
+     *
+     * @param runnables the <code>Runnable</code>s to be executed.
+     * @param name set the thread name for the duration of each run
+     */
+    void executeAll(Collection<? extends Runnable> runnables, String name);
+
+    /**
+     * Returns the statistics of this backend.
+     * @return the statistics.
+     */
+    ThreadPoolMetrics getMetrics();
+}
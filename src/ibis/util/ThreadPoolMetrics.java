@@ -0,0 +1,242 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Live statistics of a threadpool: task counts, thread counts, and
+ * histograms of dispatch latency (time between submission and start of a
+ * task) and task run time. Updating the statistics never allocates, so they
+ * are always on. The statistics can be read through this class, or through
+ * JMX after {@link #registerMBean(String)}.
+ *
+ * The statistics that are updated for every task are striped (see
+ * {@link StripedCounter}), so that threads that dispatch and run tasks do
+ * not contend for them; reading them is more expensive instead.
+ *
+ * The statistics of the {@link ThreadPool} are available through
+ * {@link ThreadPool#getMetrics()}. They are registered with JMX when the
+ * <code>ibis.util.threadpool.jmx</code> property is set.
+ */
+public final class ThreadPoolMetrics implements ThreadPoolMetricsMBean {
+
+    static final Logger logger = Logger.getLogger(ThreadPoolMetrics.class);
+
+    /** Time over which {@link #getSubmitRate()} is computed, at least. */
+    private static final long RATE_WINDOW = 1000000000L;
+
+    /** A number of submitted tasks at some time. */
+    private static final class Sample {
+        final long time;
+
+        final long count;
+
+        Sample(long time, long count) {
+            this.time = time;
+            this.count = count;
+        }
+    }
+
+    private final StripedCounter submitted = new StripedCounter();
+
+    private final StripedCounter started = new StripedCounter();
+
+    private final StripedCounter completed = new StripedCounter();
+
+    private final AtomicLong created = new AtomicLong();
+
+    private final AtomicLong expired = new AtomicLong();
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    private final AtomicInteger peakThreads = new AtomicInteger();
+
+    private final LatencyHistogram dispatch = new LatencyHistogram(true);
+
+    private final LatencyHistogram run = new LatencyHistogram(true);
+
+    // for getSubmitRate(): samples at least RATE_WINDOW apart, taken when
+    // the rate is read. Guarded by this.
+    private Sample older = new Sample(System.nanoTime(), 0);
+
+    private Sample newer = older;
+
+    ThreadPoolMetrics() {
+        /* do nothing */
+    }
+
+    /** Records the submission of a task. */
+    void submitted() {
+        submitted.increment();
+    }
+
+    /**
+     * Records the submission of a batch of tasks.
+     * @param count the number of tasks.
+     */
+    void submitted(int count) {
+        submitted.add(count);
+    }
+
+    /**
+     * Records the creation of a thread.
+     * @return the current number of threads.
+     */
+    int threadCreated() {
+        created.incrementAndGet();
+        int n = threads.incrementAndGet();
+        int peak;
+        while (n > (peak = peakThreads.get())) {
+            if (peakThreads.compareAndSet(peak, n)) {
+                break;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Records the exit of a thread.
+     * @return the current number of threads.
+     */
+    int threadExpired() {
+        expired.incrementAndGet();
+        return threads.decrementAndGet();
+    }
+
+    /**
+     * Records the start of a task.
+     * @param submitTime the <code>System.nanoTime()</code> at submission.
+     * @return the start time, to be passed to {@link #taskDone(long)}.
+     */
+    long taskStarted(long submitTime) {
+        long now = System.nanoTime();
+        started.increment();
+        dispatch.record(now - submitTime);
+        return now;
+    }
+
+    /**
+     * Records the end of a task.
+     * @param startTime the value returned by {@link #taskStarted(long)}.
+     */
+    void taskDone(long startTime) {
+        run.record(System.nanoTime() - startTime);
+        completed.increment();
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server, under the
+     * name <code>ibis.util:type=ThreadPool,name=</code><i>name</i>.
+     * @param name the name of the pool.
+     * @return <code>true</code> if the registration succeeded.
+     */
+    public boolean registerMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("ibis.util:type=ThreadPool,name=" + name));
+            return true;
+        } catch (Exception e) {
+            logger.warn("could not register threadpool statistics of " + name
+                    + " with JMX", e);
+            return false;
+        }
+    }
+
+    public long getSubmittedTasks() {
+        return submitted.get();
+    }
+
+    public long getCompletedTasks() {
+        return completed.get();
+    }
+
+    public double getSubmitRate() {
+        long now = System.nanoTime();
+        long count = submitted.get();
+        Sample base;
+        synchronized (this) {
+            // Only time moves the window, so readers do not disturb each
+            // other.
+            if (now - newer.time >= RATE_WINDOW) {
+                older = newer;
+                newer = new Sample(now, count);
+            }
+            base = older;
+        }
+        if (now == base.time) {
+            return 0.0;
+        }
+        return (count - base.count) * 1.0e9 / (now - base.time);
+    }
+
+    public int getIdleThreads() {
+        return Math.max(0, threads.get() - getBusyThreads());
+    }
+
+    public int getBusyThreads() {
+        // Read completed first, so that a task that completes in between
+        // is not counted as busy.
+        long done = completed.get();
+        return (int) Math.max(0, started.get() - done);
+    }
+
+    public int getPeakThreads() {
+        return peakThreads.get();
+    }
+
+    public long getThreadsCreated() {
+        return created.get();
+    }
+
+    public long getThreadsExpired() {
+        return expired.get();
+    }
+
+    public double getReuseRatio() {
+        long n = started.get();
+        if (n == 0) {
+            return 0.0;
+        }
+        return Math.max(0.0, 1.0 - ((double) created.get()) / n);
+    }
+
+    public double getMeanDispatchLatency() {
+        return dispatch.getMean();
+    }
+
+    public long getDispatchLatency99() {
+        return dispatch.getPercentile(99.0);
+    }
+
+    public long getMaxDispatchLatency() {
+        return dispatch.getMax();
+    }
+
+    public double getMeanRunTime() {
+        return run.getMean();
+    }
+
+    public long getRunTime99() {
+        return run.getPercentile(99.0);
+    }
+
+    public long getMaxRunTime() {
+        return run.getMax();
+    }
+
+    public String toString() {
+        return "submitted " + getSubmittedTasks() + " completed "
+                + getCompletedTasks() + " threads created "
+                + getThreadsCreated() + " expired " + getThreadsExpired()
+                + " peak " + getPeakThreads() + " reuse " + getReuseRatio()
+                + " <dispatch> " + getMeanDispatchLatency() + " ns <run> "
+                + getMeanRunTime() + " ns";
+    }
+}
@@ -0,0 +1,56 @@
+/* $Id$ */
+
+package ibis.util;
+
+/**
+ * JMX management interface of {@link ThreadPoolMetrics}.
+ * All times are in nanoseconds.
+ */
+public interface ThreadPoolMetricsMBean {
+
+    /** @return the number of tasks submitted. */
+    long getSubmittedTasks();
+
+    /** @return the number of tasks that have finished. */
+    long getCompletedTasks();
+
+    /** @return the number of tasks submitted per second, averaged since an
+     *  earlier reading, by any client, that is at least a second old. */
+    double getSubmitRate();
+
+    /** @return the number of threads that is waiting for work. */
+    int getIdleThreads();
+
+    /** @return the number of threads that is running a task. */
+    int getBusyThreads();
+
+    /** @return the maximum number of threads that existed simultaneously. */
+    int getPeakThreads();
+
+    /** @return the number of threads that were created. */
+    long getThreadsCreated();
+
+    /** @return the number of threads that exited. */
+    long getThreadsExpired();
+
+    /** @return the fraction of tasks that ran on an existing thread. */
+    double getReuseRatio();
+
+    /** @return the mean time between submission and start of a task. */
+    double getMeanDispatchLatency();
+
+    /** @return the 99th percentile of the dispatch latency (upper bound). */
+    long getDispatchLatency99();
+
+    /** @return the maximum dispatch latency. */
+    long getMaxDispatchLatency();
+
+    /** @return the mean run time of a task. */
+    double getMeanRunTime();
+
+    /** @return the 99th percentile of the task run time (upper bound). */
+    long getRunTime99();
+
+    /** @return the maximum run time of a task. */
+    long getMaxRunTime();
+}
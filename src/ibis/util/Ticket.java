@@ -2,6 +2,14 @@
 
 package ibis.util;
 
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import org.apache.log4j.Logger;
 
 /**
@@ -14,199 +22,689 @@ import org.apache.log4j.Logger;
  * produces an object and calls <code>put(ticket, object)</code>. Meanwhile,
  * the consumer calls <code>collect(ticket)</code>, which will block until
  * an object has been connected to the ticket, and then return that object.
+ * Alternatively, the consumer calls <code>collectAsync(ticket)</code>, which
+ * returns a {@link TaskFuture} for the object right away, so that no thread
+ * has to wait for it. Waits can be given a timeout, tickets can be cancelled,
+ * and a ticket can be given a deadline after which it is cancelled
+ * automatically, so that objects that never arrive do not leak threads or
+ * tickets. A wait without a timeout is not ended by an interrupt, but the
+ * interrupt status of the thread is kept.
+ *
+ * By default, a ticket holds one object at a time, and <code>put</code>
+ * blocks until the previous object has been taken. A <code>Ticket</code>
+ * can be created with a larger slot capacity, so that a producer can
+ * deliver a stream of objects for one ticket: each slot then is a small
+ * ring, <code>put</code> only blocks when the ring is full, and the
+ * consumer takes the objects one by one with <code>get(ticket)</code>, or
+ * in batches with <code>drainTo</code>, in the order they were put.
+ *
+ * Handing out and returning ticket numbers, and finding the data of a
+ * ticket, do not take a lock: free ticket numbers are kept on a lock-free
+ * stack, and the slots are kept in segments that are never moved. Only
+ * adding a segment, when all tickets are in use, takes a lock.
+ *
+ * There is no object per ticket: a segment keeps the data of its slots in
+ * parallel arrays, and the state of a slot in a single <code>long</code>,
+ * which is changed with compare-and-set. A thread only takes a lock when it
+ * has to wait; it then waits on one of a fixed set of lock objects, which
+ * is shared by many slots.
+ *
+ * @param <T> the type of the objects associated with the tickets.
  */
-public class Ticket {
+public class Ticket<T> {
 
     /**
      * Initial number of tickets.
      */
     private final static int INIT_SIZE = 16;
 
+    /**
+     * Maximum number of objects a ticket can hold at the same time.
+     */
+    public static final int MAX_SLOT_CAPACITY = 255;
+
+    final private static String PROPERTY_PREFIX = "ibis.util.ticket.";
+
+    final private static String trace = PROPERTY_PREFIX + "trace";
+
+    final private static String[] props = { trace };
+
+    final private static UtilProperties myprops = new UtilProperties(
+            System.getProperties(), PROPERTY_PREFIX, props);
+
+    /**
+     * Whether to log the life cycle of tickets. This is a constant, so that
+     * the JIT removes the tracing from the hot paths when it is off.
+     */
+    final static boolean TRACE = myprops.getBooleanProperty(trace);
+
     static Logger logger = Logger.getLogger(Ticket.class.getName());
-    
+
+    static {
+        if (TRACE) {
+            System.err.println("Turn on Ticket.TRACE");
+        }
+    }
+
+    // Layout of the state word of a slot. The low byte holds flags, the
+    // next byte the number of objects in the slot, and the byte after that
+    // the position of the first one in the ring of the slot.
+    //
+    // Bits 24-47 hold a sequence number, which is incremented whenever an
+    // object is put in or taken out, so that a consumer that read the first
+    // object cannot take it out after other threads emptied and refilled
+    // the slot, which may leave the other fields the same. The number only
+    // wraps after 2^24 puts and takes: a stale consumer still succeeds if
+    // it is held up between reading the object and its compare-and-set for
+    // exactly a multiple of 2^23 put/take pairs of that one ticket, which
+    // takes seconds at the very least.
+    //
+    // The high 16 bits hold the generation of the slot, which is
+    // incremented whenever its ticket is given out or cancelled, so that
+    // waiters notice that the ticket they waited for is gone. The sequence
+    // number keeps counting across generations.
+
+    /** The ticket has been given out. */
+    private static final long VALID = 1;
+
+    /** A producer is storing an object in the slot. */
+    private static final long WRITING = 2;
+
+    /** An asynchronous collect is registered for the slot. */
+    private static final long COLLECTOR = 4;
+
+    /** The ticket has a deadline. */
+    private static final long DEADLINE = 8;
+
+    /** A thread waits for the state of the slot to change. */
+    private static final long WAITERS = 16;
+
+    private static final int COUNT_SHIFT = 8;
+
+    private static final int HEAD_SHIFT = 16;
+
+    private static final int SEQUENCE_SHIFT = 24;
+
+    private static final int GENERATION_SHIFT = 48;
+
+    /** One object more in the slot. */
+    private static final long COUNT_ONE = 1L << COUNT_SHIFT;
+
+    /** The head field. */
+    private static final long HEAD = 0xffL << HEAD_SHIFT;
+
+    /** The count and head fields. */
+    private static final long POSITION = 0xffff00L;
+
+    /** The sequence field. */
+    private static final long SEQUENCE = 0xffffffL << SEQUENCE_SHIFT;
+
+    /** The generation field. */
+    private static final long GENERATION = 0xffffL << GENERATION_SHIFT;
+
+    /** Number of lock objects that waiting threads share. */
+    private static final int STRIPES = 64;
+
     /**
-     * Bucket associated with a ticket. It contains room for the object
-     * that is to be associated with the ticket, and some other administrative
-     * stuff. It also has methods to access those data.
+     * The slots of a range of tickets, as parallel arrays.
      */
-    private static class Bucket {
+    private final class Segment {
+        /** The state word of each slot. */
+        final AtomicLongArray state;
+
         /**
-         * Room for the object associated with a ticket.
+         * Room for the objects associated with each ticket: the ring of
+         * slot <code>i</code> starts at <code>i * slotCapacity</code>.
          */
-        private Object data;
+        final Object[] data;
 
         /**
-         * The number of threads waiting for something to happen on this bucket.
+         * The next ticket on the free stack, for each slot that is on it,
+         * or -1.
          */
-        private int waiters;
+        final int[] nextFree;
 
         /**
-         * Flag indicating whether this bucket may currently be used (i.e., the
-         * corresponding ticket number has been given out).
+         * The {@link System#nanoTime()} at which the reaper cancels the
+         * ticket, if it has the {@link #DEADLINE} bit.
          */
-        private boolean valid;
+        final long[] deadline;
 
         /**
-         * Flag indicating whether this bucket is currently initialized
-         * (i.e., a value has been put in it). A separate flag allows for
-         * null values as well.
+         * The future of an asynchronous collect, if the slot has the
+         * {@link #COLLECTOR} bit.
          */
-        private boolean initialized;
+        final Collected<?>[] collector;
+
+        /** Number of the first ticket of this segment. */
+        final int first;
+
+        Segment(int first, int size) {
+            this.first = first;
+            state = new AtomicLongArray(size);
+            data = new Object[size * slotCapacity];
+            nextFree = new int[size];
+            deadline = new long[size];
+            collector = new Collected<?>[size];
+        }
 
         /**
-         * Constructor.
+         * Changes the state of slot <code>i</code>, and wakes up threads
+         * that wait for it to change.
+         * @return <code>false</code> if the state was not <code>old</code>.
          */
-        Bucket() {
-            data = null;
-            waiters = 0;
-            valid = false;
-            initialized = false;
+        boolean change(int i, long old, long update) {
+            if (!state.compareAndSet(i, old, update & ~WAITERS)) {
+                return false;
+            }
+            if ((old & WAITERS) != 0) {
+                Object lock = locks[(first + i) & (STRIPES - 1)];
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+            }
+            return true;
         }
 
         /**
-         * Makes this bucket valid: its associated ticket number has been
-         * given out.
+         * Waits until the state of slot <code>i</code> may have changed from
+         * <code>old</code>. May return spuriously.
+         * @param nanos the timeout in nanoseconds, or 0 to wait without one.
          */
-        synchronized void setValid() {
-            valid = true;
+        void await(int i, long old, long nanos) throws InterruptedException {
+            Object lock = locks[(first + i) & (STRIPES - 1)];
+            synchronized (lock) {
+                long s = state.get(i);
+                if ((s & ~WAITERS) != (old & ~WAITERS)) {
+                    return;
+                }
+                if ((s & WAITERS) == 0
+                        && !state.compareAndSet(i, s, s | WAITERS)) {
+                    return;
+                }
+                if (nanos == 0) {
+                    lock.wait();
+                } else {
+                    lock.wait(nanos / 1000000, (int) (nanos % 1000000));
+                }
+            }
         }
 
         /**
-         * Gets and resets the object. It first blocks until a value is
-         * put(), and then grabs and destroys it.
-         * @return the object put into this bucket.
+         * Returns the index in {@link #data} of the first object in slot
+         * <code>i</code>, which has state <code>s</code>.
          */
-        synchronized Object get() {
-            Object result;
+        int head(int i, long s) {
+            return i * slotCapacity + (int) ((s & HEAD) >>> HEAD_SHIFT);
+        }
 
-            if (!valid) {
-                throw new RuntimeException("Invalid ticket");
-            }
-            while (!initialized) {
-                waiters++;
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    // ignore
-                }
-                waiters--;
+        /**
+         * Returns state <code>s</code> with the first object removed from
+         * the ring.
+         */
+        long removed(long s) {
+            int head = (int) ((s & HEAD) >>> HEAD_SHIFT) + 1;
+            if (head == slotCapacity) {
+                head = 0;
             }
+            return nextSequence((s & ~POSITION) | ((long) head << HEAD_SHIFT)
+                    | ((long) (count(s) - 1) << COUNT_SHIFT));
+        }
 
-            result = data;
-            initialized = false;
-
-            if (waiters != 0) {
-                notifyAll();
+        /**
+         * Clears the ring of slot <code>i</code>, so that it does not keep
+         * objects alive.
+         */
+        void clear(int i) {
+            int start = i * slotCapacity;
+            for (int j = 0; j < slotCapacity; j++) {
+                data[start + j] = null;
             }
-            return result;
         }
 
         /**
-         * Gets and resets the object. It first blocks until a value is
-         * put(), and then grabs and destroys it. The difference with
-         * <code>get</code> is that <code>collect</code> also makes the
-         * bucket invalid, so that a new ticket is required.
-         * @return the object put into this bucket.
+         * Makes slot <code>i</code> valid: its ticket has been given out.
+         */
+        void setValid(int i) {
+            long s;
+            do {
+                s = state.get(i);
+            } while (!change(i, s, nextGeneration(s) | VALID));
+        }
+
+        /**
+         * Sets the time at which the reaper cancels the ticket of slot
+         * <code>i</code>.
+         * @param d the deadline, as a {@link System#nanoTime()}.
          */
-        synchronized Object collect() {
-            Object result;
+        void setDeadline(int i, long d) {
+            deadline[i] = d;
+            long s;
+            do {
+                s = state.get(i);
+                if ((s & VALID) == 0) {
+                    return;
+                }
+            } while (!state.compareAndSet(i, s, s | DEADLINE));
+        }
 
-            if (!valid) {
+        /**
+         * Waits until an object is put in slot <code>i</code>, and returns
+         * the first one.
+         * @param remove whether to take the object out of the slot.
+         * @param release whether to also make the slot invalid. Other
+         *     objects in the slot are dropped.
+         * @param timed whether to wait with a timeout. If not, an interrupt
+         *     does not end the wait, but the interrupt status is kept.
+         * @param nanos the timeout in nanoseconds, if <code>timed</code>.
+         * @return the object.
+         */
+        @SuppressWarnings("unchecked")
+        T take(int i, boolean remove, boolean release, boolean timed,
+                long nanos) throws InterruptedException, TimeoutException {
+            long s = state.get(i);
+            if ((s & VALID) == 0) {
                 throw new RuntimeException("Invalid ticket");
             }
-            while (!initialized) {
-                waiters++;
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    // ignore
+            long gen = generation(s);
+            long end = System.nanoTime() + nanos;
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    s = state.get(i);
+                    if (generation(s) != gen || (s & VALID) == 0) {
+                        throw new CancellationException("Ticket cancelled");
+                    }
+                    // The slot cannot be released while a producer stores
+                    // into it.
+                    if (count(s) > 0 && !(release && (s & WRITING) != 0)) {
+                        Object result = data[head(i, s)];
+                        if (!remove) {
+                            // Only valid if the object was not taken out,
+                            // and the ticket was not released or reissued,
+                            // in the meantime.
+                            long check = GENERATION | SEQUENCE | VALID | HEAD;
+                            if (((state.get(i) ^ s) & check) == 0) {
+                                return (T) result;
+                            }
+                            continue;
+                        }
+                        long update = release ? released(s) : removed(s);
+                        if (change(i, s, update)) {
+                            if (release) {
+                                clear(i);
+                            }
+                            return (T) result;
+                        }
+                        continue;
+                    }
+                    if (timed) {
+                        if (nanos <= 0) {
+                            throw new TimeoutException();
+                        }
+                        await(i, s, nanos);
+                        nanos = end - System.nanoTime();
+                    } else {
+                        try {
+                            await(i, s, 0);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
                 }
-                waiters--;
             }
-
-            result = data;
-            initialized = false;
-            valid = false;
-            return result;
         }
 
         /**
-         * Releases this bucket. After this call, a new ticket is required.
+         * Waits until an object is put in slot <code>i</code>, and then
+         * moves up to <code>max</code> objects from the slot to the
+         * specified collection.
+         * @return the number of objects moved.
          */
-        synchronized void release() {
-            if (!valid) {
-                throw new RuntimeException("Invalid ticket");
+        @SuppressWarnings("unchecked")
+        int drainTo(int i, Collection<? super T> c, int max, boolean timed,
+                long nanos) throws InterruptedException, TimeoutException {
+            long gen = generation(state.get(i));
+            c.add(take(i, true, false, timed, nanos));
+            int n = 1;
+            while (n < max) {
+                long s = state.get(i);
+                if (generation(s) != gen || (s & VALID) == 0 || count(s) == 0) {
+                    break;
+                }
+                Object o = data[head(i, s)];
+                if (change(i, s, removed(s))) {
+                    c.add((T) o);
+                    n++;
+                }
             }
-            initialized = false;
-            valid = false;
+            return n;
         }
 
         /**
-         * Gets the object. It first blocks until a value is put(), 
-         * and then returns it.
-         * @return the object put into this bucket.
+         * Puts an object in slot <code>i</code>. It first waits until there
+         * is room in the slot, then puts the object in it, and wakes up
+         * waiters. If an asynchronous collect is registered, the object is
+         * not put in the slot, but the slot is made invalid, and the future
+         * of the collect is returned.
+         * @param block whether to wait for room.
+         * @return the future to be completed with the object,
+         *     {@link #FULL} if there was no room and <code>block</code> is
+         *     not set, or null.
          */
-        synchronized Object peek() {
-            if (!valid) {
+        Collected<?> put(int i, T o, boolean block) {
+            long s = state.get(i);
+            if ((s & VALID) == 0) {
                 throw new RuntimeException("Invalid ticket");
             }
-            while (!initialized) {
-                waiters++;
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    // ignore
+            long gen = generation(s);
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    s = state.get(i);
+                    if (generation(s) != gen || (s & VALID) == 0) {
+                        throw new CancellationException("Ticket cancelled");
+                    }
+                    if ((s & COLLECTOR) != 0) {
+                        if (change(i, s, released(s))) {
+                            Collected<?> c = collector[i];
+                            collector[i] = null;
+                            return c;
+                        }
+                        continue;
+                    }
+                    if (count(s) == slotCapacity) {
+                        if (!block) {
+                            return FULL;
+                        }
+                        try {
+                            await(i, s, 0);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                        continue;
+                    }
+                    if ((s & WRITING) != 0) {
+                        // Another producer; this does not take long.
+                        Thread.yield();
+                        continue;
+                    }
+                    if (change(i, s, s | WRITING)) {
+                        break;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
                 }
-                waiters--;
             }
+            // Nobody else changes the generation, or stores into the slot,
+            // while the WRITING bit is set. Consumers may take objects in
+            // the meantime, but that does not move the tail of the ring.
+            int tail = (int) ((s & HEAD) >>> HEAD_SHIFT) + count(s);
+            if (tail >= slotCapacity) {
+                tail -= slotCapacity;
+            }
+            data[i * slotCapacity + tail] = o;
+            do {
+                s = state.get(i);
+            } while (!change(i, s, nextSequence(s & ~WRITING) + COUNT_ONE));
+            return null;
+        }
 
-            return data;
+        /**
+         * Registers an asynchronous collect for slot <code>i</code>. If an
+         * object has been put already, it is grabbed and returned, and the
+         * slot is made invalid, like <code>collect</code> does. Otherwise,
+         * the next <code>put</code> hands its object to the future instead.
+         * @return the object, or {@link #NOT_READY}.
+         */
+        Object collectAsync(int i, Collected<?> c) {
+            while (true) {
+                long s = state.get(i);
+                if ((s & VALID) == 0) {
+                    throw new RuntimeException("Invalid ticket");
+                }
+                if ((s & COLLECTOR) != 0) {
+                    throw new RuntimeException(
+                            "Ticket already being collected");
+                }
+                if ((s & WRITING) != 0) {
+                    // An object is on its way; this does not take long.
+                    Thread.yield();
+                } else if (count(s) > 0) {
+                    Object result = data[head(i, s)];
+                    if (change(i, s, released(s))) {
+                        clear(i);
+                        return result;
+                    }
+                } else {
+                    collector[i] = c;
+                    if (state.compareAndSet(i, s, s | COLLECTOR)) {
+                        return NOT_READY;
+                    }
+                    collector[i] = null;
+                }
+            }
         }
 
         /**
-         * Puts an object in the bucket. It first waits until the
-         * bucket is free, then puts the data in it, and notifies
-         * waiters.
-         * @param o the object to be placed in the bucket.
+         * Cancels the ticket of slot <code>i</code>, if its state is
+         * <code>s</code> and no object is being stored: makes the slot
+         * invalid, and makes threads that wait for it throw a
+         * {@link CancellationException}.
+         * @return the future of a pending asynchronous collect,
+         *     {@link #NO_COLLECTOR} if there is none, or null if the state
+         *     was not <code>s</code>.
          */
-        synchronized void put(Object o) {
-            if (!valid) {
-                throw new RuntimeException("Invalid ticket");
+        private Collected<?> cancel(int i, long s) {
+            if ((s & WRITING) != 0) {
+                // An object is on its way; this does not take long.
+                Thread.yield();
+                return null;
+            }
+            if (!change(i, s, nextGeneration(s))) {
+                return null;
+            }
+            clear(i);
+            if ((s & COLLECTOR) == 0) {
+                return NO_COLLECTOR;
+            }
+            Collected<?> c = collector[i];
+            collector[i] = null;
+            return c;
+        }
+
+        /**
+         * Cancels the ticket of slot <code>i</code>.
+         * @return the future of a pending asynchronous collect,
+         *     {@link #NO_COLLECTOR} if there is none, or null if the ticket
+         *     was not in use.
+         */
+        Collected<?> cancel(int i) {
+            while (true) {
+                long s = state.get(i);
+                if ((s & VALID) == 0) {
+                    return null;
+                }
+                Collected<?> c = cancel(i, s);
+                if (c != null) {
+                    return c;
+                }
             }
-            while (initialized) {
-                waiters++;
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    // ignore
+        }
+
+        /**
+         * Cancels the ticket of slot <code>i</code> if its deadline has
+         * passed.
+         * @param now the current {@link System#nanoTime()}.
+         * @return like {@link #cancel(int)}, but also null if the deadline
+         *     has not passed.
+         */
+        Collected<?> reap(int i, long now) {
+            while (true) {
+                long s = state.get(i);
+                if ((s & (VALID | DEADLINE)) != (VALID | DEADLINE)
+                        || now - deadline[i] < 0) {
+                    return null;
+                }
+                Collected<?> c = cancel(i, s);
+                if (c != null) {
+                    return c;
                 }
-                waiters--;
             }
-            data = o;
-            initialized = true;
-            if (waiters != 0) {
-                notifyAll();
+        }
+
+        /**
+         * Returns whether the ticket of slot <code>i</code> is in use and
+         * has a deadline.
+         */
+        boolean hasDeadline(int i) {
+            return (state.get(i) & (VALID | DEADLINE)) == (VALID | DEADLINE);
+        }
+    }
+
+    /**
+     * Returns the number of objects in a slot with state <code>s</code>.
+     */
+    private static int count(long s) {
+        return (int) (s >>> COUNT_SHIFT) & 0xff;
+    }
+
+    /**
+     * Returns the state word with the next sequence number.
+     */
+    private static long nextSequence(long s) {
+        return (s & ~SEQUENCE) | ((s + (1L << SEQUENCE_SHIFT)) & SEQUENCE);
+    }
+
+    /**
+     * Returns the generation of a slot with state <code>s</code>.
+     */
+    private static long generation(long s) {
+        return s >>> GENERATION_SHIFT;
+    }
+
+    /**
+     * Returns state <code>s</code> of a slot of which the ticket is
+     * released: without flags and objects, and with the next sequence
+     * number.
+     */
+    private static long released(long s) {
+        return nextSequence(s & (GENERATION | SEQUENCE));
+    }
+
+    /**
+     * Returns the state word with the next generation and the next
+     * sequence number, without flags and objects.
+     */
+    private static long nextGeneration(long s) {
+        return ((generation(s) + 1) << GENERATION_SHIFT)
+                | (nextSequence(s) & SEQUENCE);
+    }
+
+    /**
+     * The future of an asynchronous collect. It is its own
+     * {@link Runnable}, so that it can be completed on a thread pool
+     * without allocating anything else.
+     */
+    private static final class Collected<V> extends TaskFuture<V> {
+        /** Whether to complete on a {@link ThreadPool} thread. */
+        final boolean dispatch;
+
+        Object value;
+
+        Collected(boolean dispatch) {
+            this.dispatch = dispatch;
+        }
+
+        @SuppressWarnings("unchecked")
+        public void run() {
+            complete((V) value);
+        }
+
+        /**
+         * Completes this future with the specified value, on this thread
+         * or on a thread pool thread.
+         */
+        void deliver(Object v) {
+            value = v;
+            if (dispatch) {
+                ThreadPool.createNew(this, "Ticket collector");
+            } else {
+                run();
             }
         }
     }
 
     /**
-     * Number of tickets that we currently can handle.
+     * Maximum number of segments. Segment <code>k</code> holds
+     * <code>base << k</code> slots, so this covers any int ticket.
      */
-    private int size;
+    private static final int MAX_SEGMENTS = 32;
+
+    /** Returned by {@link Segment#collectAsync} if no object was put yet. */
+    private static final Object NOT_READY = new Object();
+
+    /** Returned by {@link Segment#cancel(int)} if there was no collector. */
+    private static final Collected<Object> NO_COLLECTOR
+            = new Collected<Object>(false);
+
+    /** Returned by {@link Segment#put} if the slot is full. */
+    private static final Collected<Object> FULL
+            = new Collected<Object>(false);
+
+    /** Interval in milliseconds at which the reaper looks for tickets of
+     *  which the deadline has passed. */
+    private static final long REAP_INTERVAL = 100;
 
     /**
-     * A stack of free ticket numbers.
+     * The slots, in segments that double in size. Growing adds a segment,
+     * and never copies or moves a slot, so a slot can be looked up without
+     * a lock.
      */
-    private int[] tickets;
+    private final AtomicReferenceArray<Segment> segments
+            = new AtomicReferenceArray<Segment>(MAX_SEGMENTS);
+
+    /** The objects that threads wait on, shared by the slots. */
+    private final Object[] locks = new Object[STRIPES];
+
+    /** Size of the first segment, a power of two. */
+    private final int base;
+
+    /** Log2 of <code>base</code>. */
+    private final int baseShift;
+
+    /** Maximum number of objects in a slot. */
+    private final int slotCapacity;
+
+    /** Number of segments in use. Only changed with the lock held. */
+    private int numSegments;
 
     /**
-     * Top of the free ticket number stack. Ticket numbers are popped from
-     * this stack, and pushed again when they become available for reuse.
+     * Top of the stack of free ticket numbers, which are linked through
+     * {@link Segment#nextFree}. The low 32 bits hold the ticket number plus
+     * one, or 0 if the stack is empty; the high 32 bits hold a version that
+     * is incremented on every change, so that a compare-and-set cannot
+     * succeed on a top that was popped and pushed again in the meantime.
      */
-    private int top;
+    private final AtomicLong top = new AtomicLong();
 
-    private Bucket[] buckets;
+    /**
+     * The periodic task that cancels tickets of which the deadline has
+     * passed, or null if no ticket has a deadline. Guarded by this.
+     */
+    private ScheduledTask reaper = null;
+
+    /**
+     * Number of deadlines set, so that the reaper does not stop while a
+     * deadline is being set. Guarded by this.
+     */
+    private int deadlinesSet = 0;
 
     /**
      * Creates the initial data structure for <code>INIT_SIZE</code> tickets.
@@ -221,141 +719,443 @@ public class Ticket {
      * @param initialSize the initial number of tickets.
      */
     public Ticket(int initialSize) {
-        buckets = new Bucket[initialSize];
-        tickets = new int[initialSize];
+        this(initialSize, 1);
+    }
+
+    /**
+     * Creates the initial data structure for <code>initialSize</code>
+     * tickets, each of which can hold up to <code>slotCapacity</code>
+     * objects at the same time.
+     *
+     * @param initialSize the initial number of tickets.
+     * @param slotCapacity the number of objects a ticket can hold, at most
+     *     {@link #MAX_SLOT_CAPACITY}.
+     */
+    public Ticket(int initialSize, int slotCapacity) {
+        if (slotCapacity < 1 || slotCapacity > MAX_SLOT_CAPACITY) {
+            throw new IllegalArgumentException("invalid slot capacity: "
+                    + slotCapacity);
+        }
+        this.slotCapacity = slotCapacity;
 
-        for (int i = 0; i < initialSize; i++) {
-            buckets[i] = new Bucket();
-            tickets[i] = i;
+        int size = 1;
+        while (size < initialSize) {
+            size <<= 1;
         }
+        base = size;
+        baseShift = Integer.numberOfTrailingZeros(size);
 
-        top = initialSize;
-        size = initialSize;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+
+        synchronized (this) {
+            grow();
+        }
 
         if (logger.isDebugEnabled()) {
-            logger.debug("Ticket(" + initialSize + ") done");
+            logger.debug("Ticket(" + initialSize + ", " + slotCapacity
+                    + ") done");
         }
     }
 
     /**
-     * Returns a new ticket. If not available, the data structure is doubled
-     * in size.
-     * @return a new ticket number.
+     * Returns the number of objects a ticket can hold at the same time.
+     * @return the slot capacity.
      */
-    public synchronized int get() {
+    public int slotCapacity() {
+        return slotCapacity;
+    }
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.get() starting");
+    /**
+     * Returns the segment of the specified ticket.
+     */
+    private Segment segment(int ticket) {
+        if (ticket >= 0) {
+            // Segment k holds tickets base * (2^k - 1) up to
+            // base * (2^(k+1) - 1).
+            int k = 31 - Integer.numberOfLeadingZeros(
+                    (ticket >> baseShift) + 1);
+            Segment segment = segments.get(k);
+            if (segment != null) {
+                return segment;
+            }
         }
+        throw new RuntimeException("Invalid ticket");
+    }
 
-        if (top == 0) {
-
-            if (logger.isDebugEnabled()) {
-                logger.debug("Ticket.get() resizing from " + size + " to "
-                        + (size * 2));
-            }
+    /**
+     * Adds a segment of slots, and pushes its tickets on the free stack.
+     * Must be called with the lock held.
+     */
+    private void grow() {
+        int k = numSegments;
+        if (((long) base << (k + 1)) - base > Integer.MAX_VALUE
+                || ((long) base << k) * slotCapacity > Integer.MAX_VALUE) {
+            throw new Error("Too many tickets");
+        }
+        int size = base << k;
+        int first = (base << k) - base;
+        Segment segment = new Segment(first, size);
+        for (int i = 0; i < size; i++) {
+            segment.nextFree[i] = first + i + 1;
+        }
+        segments.set(k, segment);
+        numSegments = k + 1;
 
-            // resize the lot.
-            int new_size = size * 2;
+        // Push the whole segment as a chain: the lowest ticket on top.
+        long old;
+        do {
+            old = top.get();
+            segment.nextFree[size - 1] = (int) old - 1;
+        } while (!top.compareAndSet(old, newTop(old, first)));
 
-            // "tickets" is empty, so we can realloc it directly.
-            tickets = new int[new_size];
+        if (logger.isDebugEnabled()) {
+            logger.debug("Ticket.grow() added tickets " + first + " to "
+                    + (first + size - 1));
+        }
+    }
 
-            // buckets contains data, so copy it.
-            Bucket[] new_buckets = new Bucket[new_size];
+    private static long newTop(long old, int ticket) {
+        return ((old >>> 32) + 1) << 32 | ((ticket + 1) & 0xffffffffL);
+    }
 
-            System.arraycopy(buckets, 0, new_buckets, 0, size);
+    /**
+     * Pushes a ticket on the free stack.
+     */
+    private void push(int ticket) {
+        Segment segment = segment(ticket);
+        int i = ticket - segment.first;
+        long old;
+        do {
+            old = top.get();
+            segment.nextFree[i] = (int) old - 1;
+        } while (!top.compareAndSet(old, newTop(old, ticket)));
+    }
 
-            for (int i = 0; i < size; i++) {
-                tickets[i] = size + i;
-                new_buckets[size + i] = new Bucket();
+    /**
+     * Returns a new ticket. If not available, the data structure is doubled
+     * in size.
+     * @return a new ticket number.
+     */
+    public int get() {
+        int ticket;
+        Segment segment;
+        while (true) {
+            long old = top.get();
+            ticket = (int) old - 1;
+            if (ticket < 0) {
+                synchronized (this) {
+                    // Another thread may have grown it already.
+                    if ((int) top.get() == 0) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Ticket.get() resizing from "
+                                    + ((base << numSegments) - base) + " to "
+                                    + ((base << (numSegments + 1)) - base));
+                        }
+                        grow();
+                    }
+                }
+                continue;
+            }
+            // If the ticket was popped in the meantime, its nextFree may be
+            // stale, but then the version has changed and the CAS fails.
+            segment = segment(ticket);
+            int next = segment.nextFree[ticket - segment.first];
+            if (top.compareAndSet(old, newTop(old, next))) {
+                break;
             }
-
-            top = size;
-            size = new_size;
-            buckets = new_buckets;
         }
 
-        top--;
+        segment.setValid(ticket - segment.first);
 
-        int ticket = tickets[top];
+        if (TRACE) {
+            trace("issued", ticket);
+        }
 
-        buckets[ticket].setValid();
+        return ticket;
+    }
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.get() returning tickets[" + top + "] = " + ticket);
+    /**
+     * Returns a new ticket, which is cancelled, like {@link #cancel(int)}
+     * does, if it is still in use after the specified timeout. This keeps
+     * tickets from leaking when their objects never arrive. The deadlines
+     * are checked periodically by a task on the {@link ThreadPool}, so a
+     * ticket may live somewhat longer than the timeout.
+     * @param timeout the timeout.
+     * @param unit the unit of the timeout.
+     * @return a new ticket number.
+     */
+    public int get(long timeout, TimeUnit unit) {
+        int ticket = get();
+        Segment segment = segment(ticket);
+        segment.setDeadline(ticket - segment.first,
+                System.nanoTime() + unit.toNanos(timeout));
+        if (TRACE) {
+            trace("deadline", ticket, unit.toMillis(timeout));
+        }
+        synchronized (this) {
+            deadlinesSet++;
+            if (reaper == null) {
+                reaper = ThreadPool.schedule(new Runnable() {
+                    public void run() {
+                        reap();
+                    }
+                }, "Ticket reaper", REAP_INTERVAL, REAP_INTERVAL);
+            }
         }
-
         return ticket;
     }
 
+    /**
+     * Cancels the tickets of which the deadline has passed. Stops the
+     * reaper when no ticket has a deadline anymore.
+     */
+    private void reap() {
+        int set;
+        synchronized (this) {
+            set = deadlinesSet;
+        }
+        long now = System.nanoTime();
+        int pending = 0;
+        int reaped = 0;
+        for (int k = 0; k < MAX_SEGMENTS; k++) {
+            Segment segment = segments.get(k);
+            if (segment == null) {
+                break;
+            }
+            int size = segment.nextFree.length;
+            for (int i = 0; i < size; i++) {
+                Collected<?> c = segment.reap(i, now);
+                if (c != null) {
+                    push(segment.first + i);
+                    if (c != NO_COLLECTOR) {
+                        c.cancel(false);
+                    }
+                    if (TRACE) {
+                        trace("reaped", segment.first + i);
+                    }
+                    reaped++;
+                } else if (segment.hasDeadline(i)) {
+                    pending++;
+                }
+            }
+        }
+        if (reaped > 0 && logger.isDebugEnabled()) {
+            logger.debug("Ticket reaper cancelled " + reaped + " tickets");
+        }
+        if (pending == 0) {
+            synchronized (this) {
+                // A deadline that was set during the scan may have been
+                // missed.
+                if (deadlinesSet == set && reaper != null) {
+                    reaper.cancel();
+                    reaper = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels <code>ticket</code>: threads that wait for it in
+     * <code>collect</code>, <code>peek</code>, <code>get</code>,
+     * <code>drainTo</code>, or <code>put</code> throw a
+     * {@link CancellationException}, a pending <code>collectAsync</code> is
+     * cancelled, objects that were not taken yet are dropped, and the
+     * ticket is made available for reuse. A producer that still calls
+     * <code>put</code> on the ticket afterwards gets an "Invalid ticket"
+     * exception, unless the ticket has been given out again in the
+     * meantime.
+     *
+     * @param ticket the ticket number to be cancelled.
+     * @return <code>false</code> if the ticket was not in use.
+     */
+    public boolean cancel(int ticket) {
+        Segment segment = segment(ticket);
+        Collected<?> c = segment.cancel(ticket - segment.first);
+        if (c == null) {
+            return false;
+        }
+        push(ticket);
+        if (c != NO_COLLECTOR) {
+            c.cancel(false);
+        }
+        if (TRACE) {
+            trace("cancelled", ticket);
+        }
+        return true;
+    }
+
     /**
      * Associates <code>object</code> with <code>ticket</code> and notifies
      * anyone waiting on the corresponding lock.
-     * If an object is already associated
-     * with this ticket, the method blocks until the ticket is made available
-     * (by means of a <code>get(ticket)</code> call.
+     * If the ticket already holds as many objects as its slot capacity,
+     * the method blocks until one of them is taken
+     * (by means of a <code>get(ticket)</code> or <code>drainTo</code> call).
      *
      * @param ticket the ticket number that gets an object associated with it
      * @param object the object that gets associated
      */
-    public void put(int ticket, Object object) {
-        Bucket bucket;
-
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.put(" + ticket + ") starting");
+    public void put(int ticket, T object) {
+        Segment segment = segment(ticket);
+        Collected<?> c = segment.put(ticket - segment.first, object, true);
+
+        if (c != null) {
+            handOff(ticket, c, object);
+        } else if (TRACE) {
+            trace("put", ticket);
         }
+    }
 
-        synchronized (this) {
-            bucket = buckets[ticket];
-        }
+    /**
+     * Associates <code>object</code> with <code>ticket</code>, like
+     * {@link #put(int, Object)} does, but only if the ticket can hold
+     * another object.
+     *
+     * @param ticket the ticket number that gets an object associated with it
+     * @param object the object that gets associated
+     * @return <code>false</code> if the ticket already holds as many
+     *     objects as its slot capacity.
+     */
+    public boolean offer(int ticket, T object) {
+        Segment segment = segment(ticket);
+        Collected<?> c = segment.put(ticket - segment.first, object, false);
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.put() got a bucket");
+        if (c == FULL) {
+            if (TRACE) {
+                trace("rejected", ticket);
+            }
+            return false;
         }
+        if (c != null) {
+            handOff(ticket, c, object);
+        } else if (TRACE) {
+            trace("put", ticket);
+        }
+        return true;
+    }
 
-        bucket.put(object);
-
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.put() done");
+    /**
+     * Completes an asynchronous collect with an object that was put, and
+     * releases the ticket.
+     */
+    private void handOff(int ticket, Collected<?> c, T object) {
+        push(ticket);
+        if (TRACE) {
+            trace("handed-off", ticket);
         }
+        c.deliver(object);
     }
 
     /**
-     * Returns the object that gets associated with <code>ticket</code>. The
-     * <code>ticket</code> is made available for reuse.
+     * Returns a future for the object that gets associated with
+     * <code>ticket</code>, without blocking. The <code>ticket</code> is made
+     * available for reuse once the object is there. The future is completed
+     * by the thread that calls <code>put</code>, so listeners of the future
+     * should not block; see {@link #collectAsync(int, boolean)} otherwise.
+     * An asynchronous collect cannot be combined with other calls that wait
+     * for the same ticket.
      *
      * @param ticket the ticket number for which an object is now requested.
-     * @return the object that got associated with <code>ticket</code>.
+     * @return the future for the object.
      */
-    public Object collect(int ticket) {
-        Bucket bucket;
-        Object result;
+    public TaskFuture<T> collectAsync(int ticket) {
+        return collectAsync(ticket, false);
+    }
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.collect(" + ticket + ") starting");
+    /**
+     * Returns a future for the object that gets associated with
+     * <code>ticket</code>, like {@link #collectAsync(int)} does, but the
+     * future can be completed on a {@link ThreadPool} thread instead of by
+     * the thread that calls <code>put</code>, so that its listeners may
+     * block or do real work without holding up the producer.
+     *
+     * @param ticket the ticket number for which an object is now requested.
+     * @param dispatch whether to complete the future on a thread pool
+     *     thread.
+     * @return the future for the object.
+     */
+    @SuppressWarnings("unchecked")
+    public TaskFuture<T> collectAsync(int ticket, boolean dispatch) {
+        Collected<T> c = new Collected<T>(dispatch);
+        Segment segment = segment(ticket);
+        Object result = segment.collectAsync(ticket - segment.first, c);
+
+        if (result != NOT_READY) {
+            // Already there, so no reason to dispatch.
+            push(ticket);
+            c.complete((T) result);
         }
 
-        synchronized (this) {
-            bucket = buckets[ticket];
+        if (TRACE) {
+            trace(result != NOT_READY ? "collected" : "collect-pending",
+                    ticket);
         }
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.collect() got a bucket");
+        return c;
+    }
+
+    /**
+     * Waits for the object of <code>ticket</code>, without a timeout.
+     */
+    private T take(int ticket, boolean remove, boolean release) {
+        Segment segment = segment(ticket);
+        try {
+            return segment.take(ticket - segment.first, remove, release,
+                    false, 0);
+        } catch (InterruptedException e) {
+            // Not thrown without a timeout.
+            throw new Error(e);
+        } catch (TimeoutException e) {
+            throw new Error(e);
         }
+    }
 
-        result = bucket.collect();
+    /**
+     * Returns the object that gets associated with <code>ticket</code>. The
+     * <code>ticket</code> is made available for reuse; other objects that it
+     * holds are dropped.
+     *
+     * @param ticket the ticket number for which an object is now requested.
+     * @return the object that got associated with <code>ticket</code>.
+     */
+    public T collect(int ticket) {
+        T result = take(ticket, true, true);
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.collect() got a result");
-        }
+        push(ticket);
 
-        synchronized (this) {
-            tickets[top++] = ticket;
+        if (TRACE) {
+            trace("collected", ticket);
         }
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.collect() done");
+        return result;
+    }
+
+    /**
+     * Returns the object that gets associated with <code>ticket</code>, like
+     * {@link #collect(int)} does, but waits at most the specified time. On a
+     * timeout, the ticket stays in use, so that the caller can try again,
+     * or give up with {@link #cancel(int)}.
+     *
+     * @param ticket the ticket number for which an object is now requested.
+     * @param timeout the timeout.
+     * @param unit the unit of the timeout.
+     * @return the object that got associated with <code>ticket</code>.
+     * @exception InterruptedException is thrown when the thread is
+     *     interrupted while waiting.
+     * @exception TimeoutException is thrown when the timeout expired.
+     * @exception CancellationException is thrown when the ticket was
+     *     cancelled while waiting.
+     */
+    public T collect(int ticket, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        Segment segment = segment(ticket);
+        T result = segment.take(ticket - segment.first, true, true,
+                true, unit.toNanos(timeout));
+        push(ticket);
+
+        if (TRACE) {
+            trace("collected", ticket);
         }
 
         return result;
@@ -368,26 +1168,38 @@ public class Ticket {
      * @param ticket the ticket number for which an object is now requested.
      * @return the object that got associated with <code>ticket</code>.
      */
-    public Object peek(int ticket) {
-        Object result;
-        Bucket bucket;
+    public T peek(int ticket) {
+        T result = take(ticket, false, false);
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.peek(" + ticket + ") starting");
-        }
-
-        synchronized (this) {
-            bucket = buckets[ticket];
+        if (TRACE) {
+            trace("peeked", ticket);
         }
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.peek() got a bucket");
-        }
-
-        result = bucket.peek();
+        return result;
+    }
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.peek() done");
+    /**
+     * Returns the object that gets associated with <code>ticket</code>, like
+     * {@link #peek(int)} does, but waits at most the specified time.
+     *
+     * @param ticket the ticket number for which an object is now requested.
+     * @param timeout the timeout.
+     * @param unit the unit of the timeout.
+     * @return the object that got associated with <code>ticket</code>.
+     * @exception InterruptedException is thrown when the thread is
+     *     interrupted while waiting.
+     * @exception TimeoutException is thrown when the timeout expired.
+     * @exception CancellationException is thrown when the ticket was
+     *     cancelled while waiting.
+     */
+    public T peek(int ticket, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        Segment segment = segment(ticket);
+        T result = segment.take(ticket - segment.first, false, false,
+                true, unit.toNanos(timeout));
+
+        if (TRACE) {
+            trace("peeked", ticket);
         }
 
         return result;
@@ -402,45 +1214,114 @@ public class Ticket {
      * @param ticket the ticket number for which an object is now requested.
      * @return the object that got associated with <code>ticket</code>.
      */
-    public Object get(int ticket) {
-        Object result;
-        Bucket bucket;
+    public T get(int ticket) {
+        T result = take(ticket, true, false);
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.get(" + ticket + ") starting");
+        if (TRACE) {
+            trace("taken", ticket);
         }
 
-        synchronized (this) {
-            bucket = buckets[ticket];
-        }
+        return result;
+    }
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.get() got a bucket");
+    /**
+     * Waits until an object gets associated with <code>ticket</code>, and
+     * then moves up to <code>max</code> of the objects that the ticket
+     * holds to the specified collection, in the order they were put. Like
+     * <code>get(ticket)</code>, this does not release the ticket.
+     *
+     * @param ticket the ticket number for which objects are now requested.
+     * @param c the collection to add the objects to.
+     * @param max the maximum number of objects to move.
+     * @return the number of objects moved.
+     */
+    public int drainTo(int ticket, Collection<? super T> c, int max) {
+        if (max <= 0) {
+            return 0;
         }
-
-        result = bucket.get();
-
-        if (logger.isDebugEnabled()) {
-            logger.debug("Ticket.get() done");
+        Segment segment = segment(ticket);
+        int n;
+        try {
+            n = segment.drainTo(ticket - segment.first, c, max, false, 0);
+        } catch (InterruptedException e) {
+            // Not thrown without a timeout.
+            throw new Error(e);
+        } catch (TimeoutException e) {
+            throw new Error(e);
+        }
+        if (TRACE) {
+            trace("drained", ticket, n);
         }
+        return n;
+    }
 
-        return result;
+    /**
+     * Moves objects that get associated with <code>ticket</code> to the
+     * specified collection, like {@link #drainTo(int, Collection, int)}
+     * does, but waits at most the specified time for the first one.
+     *
+     * @param ticket the ticket number for which objects are now requested.
+     * @param c the collection to add the objects to.
+     * @param max the maximum number of objects to move.
+     * @param timeout the timeout.
+     * @param unit the unit of the timeout.
+     * @return the number of objects moved.
+     * @exception InterruptedException is thrown when the thread is
+     *     interrupted while waiting.
+     * @exception TimeoutException is thrown when the timeout expired.
+     * @exception CancellationException is thrown when the ticket was
+     *     cancelled while waiting.
+     */
+    public int drainTo(int ticket, Collection<? super T> c, int max,
+            long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        if (max <= 0) {
+            return 0;
+        }
+        Segment segment = segment(ticket);
+        int n = segment.drainTo(ticket - segment.first, c, max, true,
+                unit.toNanos(timeout));
+        if (TRACE) {
+            trace("drained", ticket, n);
+        }
+        return n;
     }
 
     /**
-     * Releases <code>ticket</code>. 
-     * This makes the ticket available for reuse.
+     * Releases <code>ticket</code>.
+     * This makes the ticket available for reuse. A pending
+     * <code>collectAsync</code> on the ticket is cancelled.
      * @param ticket the ticket number to be released.
      */
     public void freeTicket(int ticket) {
-        Bucket bucket;
-
-        synchronized (this) {
-            bucket = buckets[ticket];
+        Segment segment = segment(ticket);
+        Collected<?> c = segment.cancel(ticket - segment.first);
+        if (c == null) {
+            throw new RuntimeException("Invalid ticket");
         }
-        bucket.release();
-        synchronized (this) {
-            tickets[top++] = ticket;
+        push(ticket);
+        if (c != NO_COLLECTOR) {
+            c.cancel(false);
         }
+        if (TRACE) {
+            trace("freed", ticket);
+        }
+    }
+
+    /**
+     * Logs an event in the life cycle of a ticket. Only called if
+     * {@link #TRACE} is set.
+     */
+    private static void trace(String event, int ticket) {
+        logger.info("ticket=" + ticket + " event=" + event);
+    }
+
+    /**
+     * Logs an event in the life cycle of a ticket, with a number that goes
+     * with it. Only called if {@link #TRACE} is set.
+     */
+    private static void trace(String event, int ticket, long value) {
+        logger.info("ticket=" + ticket + " event=" + event + " value="
+                + value);
     }
 }
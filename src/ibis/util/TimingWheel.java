@@ -0,0 +1,242 @@
+/* $Id$ */
+
+package ibis.util;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hierarchical timing wheel, which hands tasks to the {@link ThreadPool}
+ * when their time has come. Inserting and cancelling a task take constant
+ * time, independent of the number of pending tasks, and a single ticker
+ * thread serves all of them.
+ *
+ * Time is divided in ticks. The wheel has <code>LEVELS</code> levels of
+ * <code>SIZE</code> slots each. A task that expires within
+ * <code>SIZE^(l+1)</code> ticks is kept at level <code>l</code>, in the slot
+ * given by the corresponding bits of its deadline. Whenever the slots of a
+ * level have all been passed, the next slot of the level above is cascaded:
+ * its tasks are redistributed over the lower levels. Expired tasks are taken
+ * from level 0, one slot per tick.
+ */
+final class TimingWheel extends Thread {
+
+    static final Logger logger = Logger.getLogger(TimingWheel.class);
+
+    private static final int BITS = 6;
+
+    private static final int SIZE = 1 << BITS;
+
+    private static final int MASK = SIZE - 1;
+
+    private static final int LEVELS = 4;
+
+    /** Deadlines further away than this are cascaded more than once. */
+    private static final long MAX_DELTA = (1L << (BITS * LEVELS)) - 1;
+
+    private final ScheduledTask[][] slots = new ScheduledTask[LEVELS][SIZE];
+
+    private final long tickNanos;
+
+    private final long start = System.nanoTime();
+
+    /** The next tick to process. */
+    private long base = 0;
+
+    /** The number of tasks in the wheel. */
+    private int size = 0;
+
+    /**
+     * Creates a timing wheel and starts its ticker thread.
+     * @param tickMillis the length of a tick, in milliseconds.
+     */
+    TimingWheel(long tickMillis) {
+        super("TimingWheel");
+        this.tickNanos = tickMillis * 1000000L;
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * Schedules a task.
+     * @param runnable the task.
+     * @param name the thread name for the duration of each run.
+     * @param delay the delay in milliseconds before the first run.
+     * @param period the time in milliseconds between the starts of
+     *     consecutive runs, or 0 to run the task only once.
+     * @return the scheduled task.
+     */
+    ScheduledTask schedule(Runnable runnable, String name, long delay,
+            long period) {
+        // Round the deadline up, so that the task never runs early.
+        long time = System.nanoTime() - start + Math.max(0, delay) * 1000000L;
+        long deadline = (time + tickNanos - 1) / tickNanos;
+        long periodTicks = period <= 0 ? 0
+                : Math.max(1, (period * 1000000L + tickNanos - 1) / tickNanos);
+
+        ScheduledTask task = new ScheduledTask(this, runnable, name,
+                deadline, periodTicks);
+        synchronized (this) {
+            if (size == 0) {
+                // The ticker may have been sleeping for a long time.
+                base = now();
+                notify();
+            }
+            insert(task);
+        }
+        return task;
+    }
+
+    synchronized boolean cancel(ScheduledTask task) {
+        if (task.cancelled) {
+            return false;
+        }
+        task.cancelled = true;
+        if (task.level < 0) {
+            return false;
+        }
+        unlink(task);
+        return true;
+    }
+
+    public void run() {
+        while (true) {
+            ScheduledTask expired = null;
+
+            synchronized (this) {
+                while (size == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+
+                if (base > now()) {
+                    long nanos = start + base * tickNanos - System.nanoTime();
+                    if (nanos > 0) {
+                        try {
+                            wait(nanos / 1000000, (int) (nanos % 1000000));
+                        } catch (InterruptedException e) {
+                            // ignore
+                        }
+                    }
+                    continue;
+                }
+
+                // One tick at a time, also when catching up: the tasks of a
+                // tick are handed out before the next tick is processed, so
+                // that a periodic task that expires on several of them is
+                // never on the list of expired tasks twice.
+                expired = tick();
+            }
+
+            // Hand the expired tasks to the pool, outside the lock.
+            while (expired != null) {
+                ScheduledTask task = expired;
+                expired = task.nextExpired;
+                task.nextExpired = null;
+                ThreadPool.createNew(task.runnable, task.name);
+            }
+        }
+    }
+
+    private long now() {
+        return (System.nanoTime() - start) / tickNanos;
+    }
+
+    /**
+     * Processes tick <code>base</code>: cascades higher levels when needed,
+     * and removes the expired tasks from level 0. Periodic tasks are
+     * re-inserted for their next run.
+     * @return the list of expired tasks.
+     */
+    private ScheduledTask tick() {
+        int index = (int) (base & MASK);
+        ScheduledTask expired = null;
+
+        // Cascade level l when all lower levels have wrapped around.
+        for (int l = 1; l < LEVELS; l++) {
+            if (((base >> (BITS * (l - 1))) & MASK) != 0) {
+                break;
+            }
+            cascade(l, (int) ((base >> (BITS * l)) & MASK));
+        }
+
+        ScheduledTask task = slots[0][index];
+        while (task != null) {
+            ScheduledTask next = task.next;
+            unlink(task);
+            task.nextExpired = expired;
+            expired = task;
+            task = next;
+        }
+
+        base++;
+
+        // Only now, so that a periodic task that is overdue goes to the
+        // next tick, rather than to this slot, a full turn later.
+        for (task = expired; task != null; task = task.nextExpired) {
+            if (task.period != 0 && !task.cancelled) {
+                task.deadline += task.period;
+                insert(task);
+            }
+        }
+        return expired;
+    }
+
+    private void cascade(int level, int slot) {
+        ScheduledTask task = slots[level][slot];
+        while (task != null) {
+            ScheduledTask next = task.next;
+            unlink(task);
+            insert(task);
+            task = next;
+        }
+    }
+
+    private void insert(ScheduledTask task) {
+        long deadline = task.deadline;
+        if (deadline < base) {
+            // Overdue: run it at the next tick.
+            deadline = base;
+        }
+        long delta = deadline - base;
+        if (delta > MAX_DELTA) {
+            // Too far away for the top level; it is re-inserted when
+            // that level gets cascaded.
+            deadline = base + MAX_DELTA;
+            delta = MAX_DELTA;
+        }
+
+        int level = 0;
+        while (delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((deadline >> (BITS * level)) & MASK);
+
+        task.level = level;
+        task.slot = slot;
+        task.prev = null;
+        task.next = slots[level][slot];
+        if (task.next != null) {
+            task.next.prev = task;
+        }
+        slots[level][slot] = task;
+        size++;
+    }
+
+    private void unlink(ScheduledTask task) {
+        if (task.prev == null) {
+            slots[task.level][task.slot] = task.next;
+        } else {
+            task.prev.next = task.next;
+        }
+        if (task.next != null) {
+            task.next.prev = task.prev;
+        }
+        task.prev = null;
+        task.next = null;
+        task.level = -1;
+        size--;
+    }
+}
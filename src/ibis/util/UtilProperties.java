@@ -6,8 +6,9 @@ public class UtilProperties extends TypedProperties {
 
     private static final long serialVersionUID = 1L;
 
-    private static String[] prefs = { "ibis.util.ip.", "ibis.util.monitor.",
-            "ibis.util.socketfactory." };
+    // sub-prefixes of "ibis.util.", as expected by checkProperties
+    private static String[] prefs = { "ip.", "monitor.", "socketfactory.",
+            "threadpool.", "ticket." };
  
     /** Constructs an empty typed properties object. */
     public UtilProperties() {
@@ -19,8 +20,19 @@ public class UtilProperties extends TypedProperties {
      * @param defaults the defaults.
      */
     public UtilProperties(Properties defaults, String prefix, String[] props) {
+        this(defaults, prefix, props, null);
+    }
+
+    /**
+     * Constructs a typed properties object with the specified defaults.
+     * @param defaults the defaults.
+     * @param subPrefixes properties starting with the prefix followed by
+     *     one of these are valid as well.
+     */
+    public UtilProperties(Properties defaults, String prefix, String[] props,
+            String[] subPrefixes) {
         super(defaults);
         checkProperties("ibis.util.", null, prefs, true);
-        checkProperties(prefix, props, null, true);
+        checkProperties(prefix, props, subPrefixes, true);
     }
 }
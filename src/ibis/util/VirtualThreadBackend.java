@@ -0,0 +1,90 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * {@link ThreadPoolBackend} that runs every task on a new virtual thread.
+ * Virtual threads are cheap to create and block, so there is no need to
+ * keep idle threads around. Virtual threads are only available on recent
+ * JVMs; they are looked up through reflection so that this class still
+ * compiles and loads on older ones.
+ */
+final class VirtualThreadBackend implements ThreadPoolBackend {
+
+    static final Logger logger = Logger.getLogger(VirtualThreadBackend.class);
+
+    private final ThreadFactory factory;
+
+    private final ThreadPoolMetrics metrics = new ThreadPoolMetrics();
+
+    private VirtualThreadBackend(ThreadFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Creates a virtual thread backend.
+     * @return the backend, or <code>null</code> if this JVM does not support
+     *     virtual threads.
+     */
+    static VirtualThreadBackend create() {
+        try {
+            // Thread.ofVirtual().factory()
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Method factory = Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory");
+            Object builder = ofVirtual.invoke(null);
+            return new VirtualThreadBackend(
+                    (ThreadFactory) factory.invoke(builder));
+        } catch (Throwable e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("virtual threads not available", e);
+            }
+            return null;
+        }
+    }
+
+    public void execute(final Runnable runnable, final String name) {
+        final long submitTime = System.nanoTime();
+
+        metrics.submitted();
+        Thread thread = factory.newThread(new Runnable() {
+            public void run() {
+                long startTime = metrics.taskStarted(submitTime);
+                try {
+                    runnable.run();
+                } catch (Throwable t) {
+                    // The thread ends anyway, so there is nothing to replace.
+                    ThreadPool.getFailureHandler().taskFailed(name, t);
+                }
+                metrics.taskDone(startTime);
+                metrics.threadExpired();
+            }
+        });
+        metrics.threadCreated();
+        thread.setName(name);
+        thread.start();
+    }
+
+    public void execute(Runnable runnable, String name, boolean priority) {
+        // Tasks never wait for a thread, so there is nothing to overtake.
+        execute(runnable, name);
+    }
+
+    public void executeAll(Collection<? extends Runnable> runnables,
+            String name) {
+        // Nothing to share between the tasks: every task gets its own thread.
+        for (Runnable runnable : runnables) {
+            execute(runnable, name);
+        }
+    }
+
+    public ThreadPoolMetrics getMetrics() {
+        return metrics;
+    }
+}
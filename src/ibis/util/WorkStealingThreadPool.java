@@ -0,0 +1,540 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.Collection;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Threadpool that schedules tasks with work stealing.
+ *
+ * Every thread of this pool has its own deque of tasks. A task submitted
+ * from within a thread of the pool is pushed on that thread's own deque,
+ * and the thread takes its own work in LIFO order, which keeps caches warm
+ * for divide-and-conquer workloads. Tasks submitted from outside the pool
+ * go to a shared queue. A thread that runs out of work steals the oldest
+ * task from the deque of another thread.
+ *
+ * Tasks are allowed to block, and to wait for other tasks of the same pool.
+ * To prevent deadlocks, a supervisor thread checks for tasks that are queued
+ * while no task has been started for a while. If so, an extra thread is
+ * added. Threads beyond the parallelism of the pool exit again when they
+ * have been idle for a while.
+ *
+ * Priority tasks go to a separate shared queue, which every thread checks
+ * before its own deque, so they overtake all queued normal tasks.
+ */
+public final class WorkStealingThreadPool implements ThreadPoolBackend {
+
+    static final Logger logger
+            = Logger.getLogger(WorkStealingThreadPool.class);
+
+    private static final int TIMEOUT = 30 * 1000; //30 seconds
+
+    /**
+     * A double-ended queue of tasks with their names and submission times.
+     * The owner pushes and pops at the tail, thieves take from the head.
+     * The parts of a task are kept in parallel arrays, so that a task needs
+     * no holder object.
+     */
+    private static final class TaskDeque {
+        private Runnable[] tasks = new Runnable[16];
+
+        private String[] names = new String[16];
+
+        private long[] times = new long[16];
+
+        private int head = 0;
+
+        private int count = 0;
+
+        synchronized void push(Runnable runnable, String name, long time) {
+            add(runnable, name, time);
+        }
+
+        synchronized void pushAll(Collection<? extends Runnable> runnables,
+                String name, long time) {
+            for (Runnable runnable : runnables) {
+                add(runnable, name, time);
+            }
+        }
+
+        private void add(Runnable runnable, String name, long time) {
+            if (count == tasks.length) {
+                Runnable[] newTasks = new Runnable[tasks.length * 2];
+                String[] newNames = new String[tasks.length * 2];
+                long[] newTimes = new long[tasks.length * 2];
+                for (int i = 0; i < count; i++) {
+                    int index = (head + i) % tasks.length;
+                    newTasks[i] = tasks[index];
+                    newNames[i] = names[index];
+                    newTimes[i] = times[index];
+                }
+                tasks = newTasks;
+                names = newNames;
+                times = newTimes;
+                head = 0;
+            }
+            int tail = (head + count) % tasks.length;
+            tasks[tail] = runnable;
+            names[tail] = name;
+            times[tail] = time;
+            count++;
+        }
+
+        synchronized boolean popLast(Worker worker) {
+            if (count == 0) {
+                return false;
+            }
+            count--;
+            take(worker, (head + count) % tasks.length);
+            return true;
+        }
+
+        synchronized boolean popFirst(Worker worker) {
+            if (count == 0) {
+                return false;
+            }
+            take(worker, head);
+            head = (head + 1) % tasks.length;
+            count--;
+            return true;
+        }
+
+        private void take(Worker worker, int index) {
+            worker.work = tasks[index];
+            worker.workName = names[index];
+            worker.workTime = times[index];
+            tasks[index] = null;
+            names[index] = null;
+        }
+    }
+
+    private final class Worker extends Thread {
+
+        final TaskDeque deque = new TaskDeque();
+
+        Runnable work;
+
+        String workName;
+
+        long workTime;
+
+        private int seed;
+
+        Worker(int id) {
+            super(name + "-" + id);
+            seed = id * 0x9E3779B9 + 1;
+            setDaemon(true);
+        }
+
+        WorkStealingThreadPool pool() {
+            return WorkStealingThreadPool.this;
+        }
+
+        public void run() {
+            while (true) {
+                if (!findWork(this)) {
+                    return;
+                }
+                Runnable currentWork = work;
+                String currentName = workName;
+                work = null;
+                workName = null;
+
+                long startTime = metrics.taskStarted(workTime);
+                boolean replace = false;
+                try {
+                    setName(currentName);
+                    currentWork.run();
+                } catch (Throwable t) {
+                    replace = getFailureHandler().taskFailed(currentName, t);
+                }
+                metrics.taskDone(startTime);
+
+                if (replace) {
+                    replace(this);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Returns a pseudo-random number, used to pick a victim to steal from.
+         */
+        int random() {
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            return seed & Integer.MAX_VALUE;
+        }
+    }
+
+    private final class Supervisor extends Thread {
+        Supervisor() {
+            super(name + "-supervisor");
+            setDaemon(true);
+        }
+
+        public void run() {
+            int lastStarted = started.get();
+            while (!shutdown) {
+                try {
+                    Thread.sleep(stallTimeout);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                int now = started.get();
+                if (now == lastStarted && pending.get() > 0
+                        && idle.get() == 0) {
+                    // Work is waiting, but all threads are stuck.
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("pool " + name + " stalled, adding a "
+                                + "thread to the " + workers.length
+                                + " existing ones");
+                    }
+                    synchronized (lock) {
+                        addWorker();
+                    }
+                }
+                lastStarted = now;
+            }
+        }
+    }
+
+    private final String name;
+
+    private final int parallelism;
+
+    private final long stallTimeout;
+
+    private final TaskDeque shared = new TaskDeque();
+
+    private final TaskDeque urgent = new TaskDeque();
+
+    private final Object lock = new Object();
+
+    /** The workers. Copied on update, under the lock. */
+    private volatile Worker[] workers = new Worker[0];
+
+    private int nextId = 0;
+
+    /** Number of tasks that are queued somewhere. */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /** Number of tasks that have been started. */
+    private final AtomicInteger started = new AtomicInteger();
+
+    /** Number of workers waiting for work. */
+    private final AtomicInteger idle = new AtomicInteger();
+
+    private volatile boolean shutdown = false;
+
+    private final ThreadPoolMetrics metrics = new ThreadPoolMetrics();
+
+    private volatile TaskFailureHandler failureHandler = null;
+
+    /**
+     * Creates a work-stealing threadpool.
+     *
+     * @param name the name of the pool, used for the thread names.
+     * @param parallelism the number of threads that is kept alive when idle.
+     * @param stallTimeout the time in milliseconds after which queued
+     *     work that is not picked up causes an extra thread to be added.
+     */
+    public WorkStealingThreadPool(String name, int parallelism,
+            long stallTimeout) {
+        if (parallelism < 1 || stallTimeout < 1) {
+            throw new IllegalArgumentException("invalid parameters: "
+                    + "parallelism = " + parallelism + ", stallTimeout = "
+                    + stallTimeout);
+        }
+        this.name = name;
+        this.parallelism = parallelism;
+        this.stallTimeout = stallTimeout;
+
+        synchronized (lock) {
+            for (int i = 0; i < parallelism; i++) {
+                addWorker();
+            }
+        }
+        new Supervisor().start();
+    }
+
+    /**
+     * Creates a work-stealing threadpool with one thread per processor
+     * and a stall timeout of 100 milliseconds.
+     *
+     * @param name the name of the pool, used for the thread names.
+     */
+    public WorkStealingThreadPool(String name) {
+        this(name, Runtime.getRuntime().availableProcessors(), 100);
+    }
+
+    /**
+     * Executes the specified {@link Runnable} on a thread of this pool.
+     * When called from a thread of this pool, the task is queued locally
+     * to that thread, otherwise it is queued in a shared queue.
+     *
+     * @param runnable the <code>Runnable</code> to be executed.
+     * @param name set the thread name for the duration of this run
+     * @exception RejectedExecutionException is thrown when the pool is
+     *     shut down.
+     */
+    public void execute(Runnable runnable, String name) {
+        execute(runnable, name, false);
+    }
+
+    /**
+     * Executes the specified {@link Runnable} on a thread of this pool, like
+     * {@link #execute(Runnable, String)} does. A priority task is queued in
+     * a shared priority queue, which threads check before any other work.
+     *
+     * @param runnable the <code>Runnable</code> to be executed.
+     * @param name set the thread name for the duration of this run
+     * @param priority when <code>true</code>, the task has priority over
+     *     normal tasks.
+     * @exception RejectedExecutionException is thrown when the pool is
+     *     shut down.
+     */
+    public void execute(Runnable runnable, String name, boolean priority) {
+        if (shutdown) {
+            throw new RejectedExecutionException("pool " + this.name
+                    + " is shut down");
+        }
+
+        long time = System.nanoTime();
+        metrics.submitted();
+
+        Thread current = Thread.currentThread();
+        if (priority) {
+            urgent.push(runnable, name, time);
+        } else if (current instanceof Worker
+                && ((Worker) current).pool() == this) {
+            ((Worker) current).deque.push(runnable, name, time);
+        } else {
+            shared.push(runnable, name, time);
+        }
+        pending.incrementAndGet();
+
+        if (idle.get() > 0) {
+            synchronized (lock) {
+                lock.notify();
+            }
+        }
+    }
+
+    /**
+     * Executes the specified {@link Runnable}s, like
+     * {@link #execute(Runnable, String)} does, but queues them all at once
+     * and wakes up the idle threads needed in one go.
+     *
+     * @param runnables the <code>Runnable</code>s to be executed.
+     * @param name set the thread name for the duration of each run
+     * @exception RejectedExecutionException is thrown when the pool is
+     *     shut down.
+     */
+    public void executeAll(Collection<? extends Runnable> runnables,
+            String name) {
+        if (shutdown) {
+            throw new RejectedExecutionException("pool " + this.name
+                    + " is shut down");
+        }
+
+        int n = runnables.size();
+        long time = System.nanoTime();
+        metrics.submitted(n);
+
+        Thread current = Thread.currentThread();
+        if (current instanceof Worker && ((Worker) current).pool() == this) {
+            ((Worker) current).deque.pushAll(runnables, name, time);
+        } else {
+            shared.pushAll(runnables, name, time);
+        }
+        pending.addAndGet(n);
+
+        if (idle.get() > 0) {
+            synchronized (lock) {
+                for (int i = Math.min(n, idle.get()); i > 0; i--) {
+                    lock.notify();
+                }
+            }
+        }
+    }
+
+    /**
+     * Shuts down this pool. Tasks that are already queued are still
+     * executed, but new tasks are rejected. Idle threads exit.
+     */
+    public void shutdown() {
+        shutdown = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the current number of threads in this pool.
+     * @return the number of threads.
+     */
+    public int getPoolSize() {
+        return workers.length;
+    }
+
+    /**
+     * Returns the number of tasks that are waiting for a thread.
+     * @return the number of queued tasks.
+     */
+    public int getQueueSize() {
+        return pending.get();
+    }
+
+    /**
+     * Sets the handler that decides what happens when a task throws an
+     * exception. By default, the handler of the {@link ThreadPool} is used.
+     * @param handler the new handler.
+     */
+    public void setFailureHandler(TaskFailureHandler handler) {
+        failureHandler = handler;
+    }
+
+    /**
+     * Returns the handler that decides what happens when a task throws an
+     * exception.
+     * @return the handler.
+     */
+    public TaskFailureHandler getFailureHandler() {
+        TaskFailureHandler handler = failureHandler;
+        return handler != null ? handler : ThreadPool.getFailureHandler();
+    }
+
+    /**
+     * Returns the statistics of this pool.
+     * @return the statistics.
+     */
+    public ThreadPoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Must be called with the lock held. */
+    private void addWorker() {
+        Worker[] old = workers;
+        Worker[] result = new Worker[old.length + 1];
+        System.arraycopy(old, 0, result, 0, old.length);
+        Worker worker = new Worker(nextId++);
+        result[old.length] = worker;
+        workers = result;
+        metrics.threadCreated();
+        worker.start();
+    }
+
+    /**
+     * Replaces a worker that exits after a failed task. The tasks in its
+     * deque are moved to the shared queue, so that they are not lost.
+     */
+    private void replace(Worker worker) {
+        synchronized (lock) {
+            while (worker.deque.popFirst(worker)) {
+                shared.push(worker.work, worker.workName, worker.workTime);
+            }
+            worker.work = null;
+            worker.workName = null;
+
+            Worker[] old = workers;
+            Worker[] result = new Worker[old.length];
+            Worker replacement = new Worker(nextId++);
+            for (int i = 0; i < old.length; i++) {
+                result[i] = old[i] == worker ? replacement : old[i];
+            }
+            workers = result;
+            metrics.threadExpired();
+            metrics.threadCreated();
+            replacement.start();
+        }
+    }
+
+    /**
+     * Removes the specified worker, unless that would bring the number of
+     * workers below the parallelism of this pool. Must be called with the
+     * lock held.
+     * @return <code>true</code> if the worker was removed.
+     */
+    private boolean removeWorker(Worker worker) {
+        Worker[] old = workers;
+        if (old.length <= parallelism && !shutdown) {
+            return false;
+        }
+        Worker[] result = new Worker[old.length - 1];
+        int j = 0;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] != worker) {
+                result[j++] = old[i];
+            }
+        }
+        workers = result;
+        metrics.threadExpired();
+        return true;
+    }
+
+    private boolean poll(Worker worker) {
+        if (urgent.popFirst(worker) || worker.deque.popLast(worker)
+                || shared.popFirst(worker)) {
+            return true;
+        }
+
+        Worker[] victims = workers;
+        int start = worker.random();
+        for (int i = 0; i < victims.length; i++) {
+            Worker victim = victims[(start + i) % victims.length];
+            if (victim != worker && victim.deque.popFirst(worker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds a task for the specified worker, waiting for one if needed.
+     * @return <code>false</code> if the worker should exit.
+     */
+    private boolean findWork(Worker worker) {
+        while (true) {
+            if (poll(worker)) {
+                pending.decrementAndGet();
+                started.incrementAndGet();
+                return true;
+            }
+
+            synchronized (lock) {
+                if (pending.get() > 0) {
+                    // Some task is queued, but we could not get it yet.
+                    continue;
+                }
+                if (shutdown) {
+                    removeWorker(worker);
+                    return false;
+                }
+
+                long start = System.currentTimeMillis();
+                idle.incrementAndGet();
+                if (pending.get() == 0) {
+                    try {
+                        lock.wait(TIMEOUT);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+                idle.decrementAndGet();
+
+                if (pending.get() == 0
+                        && System.currentTimeMillis() - start >= TIMEOUT
+                        && removeWorker(worker)) {
+                    return false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how fast a number of threads can hand tasks to the
+ * {@link ThreadPool}, with the lock-free idle-thread stack, and with every
+ * submission serialized on the class lock, as the old
+ * <code>static synchronized createNew</code> did.
+ *
+ * Usage: <code>java ibis.util.IdleStackBenchmark [tasks-per-thread]</code>
+ */
+public final class IdleStackBenchmark {
+
+    private IdleStackBenchmark() {
+        /* do nothing */
+    }
+
+    private static long run(final int submitters, final int tasks,
+            final boolean locked) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(submitters * tasks);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger sink = new AtomicInteger();
+        final Runnable task = new Runnable() {
+            public void run() {
+                sink.incrementAndGet();
+                done.countDown();
+            }
+        };
+        Thread[] threads = new Thread[submitters];
+        for (int i = 0; i < submitters; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < tasks; j++) {
+                        if (locked) {
+                            synchronized (ThreadPool.class) {
+                                ThreadPool.createNew(task, "bench");
+                            }
+                        } else {
+                            ThreadPool.createNew(task, "bench");
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long time = System.nanoTime();
+        start.countDown();
+        done.await();
+        time = System.nanoTime() - time;
+        for (Thread t : threads) {
+            t.join();
+        }
+        return time;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int max = 2 * Runtime.getRuntime().availableProcessors();
+
+        // Warm up both paths, and the pool threads.
+        run(max, tasks / 10, false);
+        run(max, tasks / 10, true);
+
+        System.out.println("submitters  lock-free (tasks/s)  locked (tasks/s)");
+        for (int n = 1; n <= max; n *= 2) {
+            long free = run(n, tasks, false);
+            long locked = run(n, tasks, true);
+            System.out.println(String.format("%10d  %19.0f  %16.0f", n,
+                    n * tasks * 1.0e9 / free, n * tasks * 1.0e9 / locked));
+        }
+        System.out.println(ThreadPool.getMetrics());
+    }
+}
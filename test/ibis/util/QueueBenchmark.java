@@ -0,0 +1,131 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the throughput of the lock-free ring queues against the
+ * monitor-based {@link Queue}, with the same capacity, for a number of
+ * producer and consumer configurations. Every queue only runs the
+ * configurations it supports: the {@link SPSCQueue} only runs with one
+ * producer and one consumer, the {@link MPSCQueue} with one consumer.
+ *
+ * Usage: <code>java ibis.util.QueueBenchmark [objects-per-producer]</code>
+ */
+public final class QueueBenchmark {
+
+    private static final int CAPACITY = 1024;
+
+    private static final String[] NAMES = { "Queue", "SPSCQueue",
+            "MPSCQueue", "MPMCQueue" };
+
+    private QueueBenchmark() {
+        /* do nothing */
+    }
+
+    private static ObjectQueue create(int type) {
+        switch (type) {
+        case 0:
+            return new Queue(CAPACITY);
+        case 1:
+            return new SPSCQueue(CAPACITY);
+        case 2:
+            return new MPSCQueue(CAPACITY);
+        default:
+            return new MPMCQueue(CAPACITY);
+        }
+    }
+
+    private static boolean supports(int type, int producers, int consumers) {
+        switch (type) {
+        case 1:
+            return producers == 1 && consumers == 1;
+        case 2:
+            return consumers == 1;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Runs the producers and the consumers, and returns the elapsed time in
+     * nanoseconds.
+     */
+    private static long run(final ObjectQueue q, int producers,
+            final int consumers, final int objects)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Object o = new Object();
+        final int perConsumer = producers * objects / consumers;
+        Thread[] threads = new Thread[producers + consumers];
+
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < objects; j++) {
+                        q.enqueue(o);
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < consumers; i++) {
+            threads[producers + i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < perConsumer; j++) {
+                        if (q.dequeue() != o) {
+                            throw new Error("wrong object dequeued");
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        long time = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        return System.nanoTime() - time;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int objects = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int[][] configs = { { 1, 1 }, { 2, 1 }, { 4, 1 }, { 2, 2 },
+                { 4, 4 } };
+
+        // Warm up all queues.
+        for (int type = 0; type < NAMES.length; type++) {
+            run(create(type), 1, 1, objects / 10);
+        }
+
+        System.out.println("producers  consumers  queue      "
+                + "Mobjects/s");
+        for (int[] config : configs) {
+            int producers = config[0];
+            int consumers = config[1];
+            for (int type = 0; type < NAMES.length; type++) {
+                if (!supports(type, producers, consumers)) {
+                    continue;
+                }
+                long time = run(create(type), producers, consumers,
+                        objects);
+                System.out.println(String.format("%9d  %9d  %-9s  %10.1f",
+                        producers, consumers, NAMES[type],
+                        producers * objects * 1.0e3 / time));
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the ring-buffer queues. Throws an {@link Error} on a failure.
+ */
+public final class RingQueueTest {
+
+    private RingQueueTest() {
+        /* do nothing */
+    }
+
+    private static ObjectQueue[] queues() {
+        return new ObjectQueue[] { new SPSCQueue(8), new MPSCQueue(8),
+                new MPMCQueue(8) };
+    }
+
+    /**
+     * A consumer that waits in <code>dequeueBatch</code> with an array of
+     * length 1 must return with one object when several objects arrive at
+     * once.
+     */
+    static void batchOfOne(final ObjectQueue q, final boolean timed)
+            throws InterruptedException {
+        final Object[] dst = new Object[1];
+        final int[] n = new int[1];
+        Thread consumer = new Thread() {
+            public void run() {
+                if (timed) {
+                    try {
+                        n[0] = q.dequeueBatch(dst, 10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                } else {
+                    n[0] = q.dequeueBatch(dst, 0L);
+                }
+            }
+        };
+        consumer.setDaemon(true);
+        consumer.start();
+        // Let the consumer wait for the first object.
+        Thread.sleep(100);
+        q.enqueueAll(Arrays.asList("a", "b"));
+
+        consumer.join(5000);
+        String name = q.getClass().getSimpleName();
+        if (consumer.isAlive()) {
+            throw new Error("batchOfOne(" + name + ", " + timed
+                    + "): dequeueBatch did not return");
+        }
+        if (n[0] != 1 || !"a".equals(dst[0])) {
+            throw new Error("batchOfOne(" + name + ", " + timed
+                    + "): dequeued " + n[0] + " objects");
+        }
+        if (!"b".equals(q.dequeue(-1L)) || q.size() != 0) {
+            throw new Error("batchOfOne(" + name + ", " + timed
+                    + "): second object lost");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (ObjectQueue q : queues()) {
+            batchOfOne(q, false);
+            batchOfOne(q, true);
+        }
+        System.out.println("RingQueueTest: OK");
+    }
+}
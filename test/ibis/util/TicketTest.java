@@ -0,0 +1,81 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tests the {@link Ticket}. Throws an {@link Error} on a failure.
+ */
+public final class TicketTest {
+
+    private static final int VALUES = 2000000;
+
+    private static final int CONSUMERS = 3;
+
+    private TicketTest() {
+        /* do nothing */
+    }
+
+    /**
+     * One producer puts a stream of values in a ticket, and a number of
+     * consumers take them out with <code>get(ticket)</code>. Every value
+     * must be taken exactly once, also when a slot is emptied and refilled
+     * between the moment a consumer reads it and the moment it takes the
+     * value out.
+     */
+    static void multipleConsumers(int slotCapacity)
+            throws InterruptedException {
+        final Ticket<Integer> tickets = new Ticket<Integer>(1, slotCapacity);
+        final int ticket = tickets.get();
+        final AtomicIntegerArray seen = new AtomicIntegerArray(VALUES);
+        // A negative value tells a consumer to stop.
+        final int stop = -1;
+
+        Thread[] consumers = new Thread[CONSUMERS];
+        for (int i = 0; i < CONSUMERS; i++) {
+            consumers[i] = new Thread() {
+                public void run() {
+                    while (true) {
+                        int v = tickets.get(ticket);
+                        if (v == stop) {
+                            return;
+                        }
+                        seen.incrementAndGet(v);
+                    }
+                }
+            };
+            consumers[i].start();
+        }
+        for (int v = 0; v < VALUES; v++) {
+            tickets.put(ticket, v);
+        }
+        for (int i = 0; i < CONSUMERS; i++) {
+            tickets.put(ticket, stop);
+        }
+        for (Thread t : consumers) {
+            t.join();
+        }
+
+        int duplicates = 0;
+        int lost = 0;
+        for (int v = 0; v < VALUES; v++) {
+            int n = seen.get(v);
+            if (n == 0) {
+                lost++;
+            } else if (n > 1) {
+                duplicates += n - 1;
+            }
+        }
+        if (duplicates > 0 || lost > 0) {
+            throw new Error("multipleConsumers(" + slotCapacity + "): "
+                    + duplicates + " duplicates, " + lost + " lost");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        multipleConsumers(1);
+        multipleConsumers(4);
+        System.out.println("TicketTest: OK");
+    }
+}
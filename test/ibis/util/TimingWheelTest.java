@@ -0,0 +1,97 @@
+/* $Id$ */
+
+package ibis.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the {@link TimingWheel}. Throws an {@link Error} on a failure.
+ */
+public final class TimingWheelTest {
+
+    private static final int ROUNDS = 20;
+
+    private TimingWheelTest() {
+        /* do nothing */
+    }
+
+    /**
+     * A one-shot task must run, even when the ticker falls behind while a
+     * periodic task expires several times during the catch-up.
+     */
+    static void delayedTicker() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(1);
+        final AtomicInteger periodic = new AtomicInteger();
+        int lost = 0;
+
+        ScheduledTask p = wheel.schedule(new Runnable() {
+            public void run() {
+                periodic.incrementAndGet();
+            }
+        }, "periodic", 10, 10);
+
+        for (int i = 0; i < ROUNDS; i++) {
+            final CountDownLatch ran = new CountDownLatch(1);
+            wheel.schedule(new Runnable() {
+                public void run() {
+                    ran.countDown();
+                }
+            }, "one-shot", 30, 0);
+
+            // Keep the ticker from processing ticks for a while.
+            synchronized (wheel) {
+                Thread.sleep(150);
+            }
+
+            if (!ran.await(2, TimeUnit.SECONDS)) {
+                lost++;
+            }
+        }
+        p.cancel();
+
+        if (lost > 0) {
+            throw new Error("delayedTicker: " + lost + " of " + ROUNDS
+                    + " one-shot tasks were lost");
+        }
+        if (periodic.get() == 0) {
+            throw new Error("delayedTicker: periodic task never ran");
+        }
+    }
+
+    /**
+     * Tasks run in the order of their deadlines, and not early.
+     */
+    static void order() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(1);
+        final int n = 50;
+        final long[] ran = new long[n];
+        final CountDownLatch done = new CountDownLatch(n);
+        final long start = System.nanoTime();
+
+        for (int i = n - 1; i >= 0; i--) {
+            final int k = i;
+            wheel.schedule(new Runnable() {
+                public void run() {
+                    ran[k] = System.nanoTime() - start;
+                    done.countDown();
+                }
+            }, "order", 5 * k, 0);
+        }
+        if (!done.await(5, TimeUnit.SECONDS)) {
+            throw new Error("order: tasks did not run");
+        }
+        for (int i = 0; i < n; i++) {
+            if (ran[i] < 5L * i * 1000000L) {
+                throw new Error("order: task " + i + " ran early");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        order();
+        delayedTicker();
+        System.out.println("TimingWheelTest: OK");
+    }
+}